@@ -0,0 +1,44 @@
+package org.cranfield;
+
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.index.*;
+import org.apache.lucene.store.*;
+
+// -----------------------------
+// Shared inputs for the benchmarks. Paths are resolved against the
+// cranfield.home system property (default: working directory, i.e. the repo root).
+// -----------------------------
+class BenchmarkData {
+
+    static final Path HOME = Paths.get(System.getProperty("cranfield.home", "."));
+    static final Path CRAN = HOME.resolve("cran/cran.all.1400");
+    static final Path QUERIES = HOME.resolve("cran/cran.qry");
+    static final Path QRELS = HOME.resolve("cran/cranqrel");
+
+    static final PrintStream NO_OUTPUT = new PrintStream(OutputStream.nullOutputStream());
+
+    static Analyzer analyzer(String name) {
+        Analyzer analyzer = Main.createAnalyzers().get(name);
+        if (analyzer == null) throw new IllegalArgumentException("Unknown analyzer: " + name);
+        return analyzer;
+    }
+
+    // In-memory index, built with the same pipeline and writer settings as the harness
+    static Directory buildIndex(Analyzer analyzer) throws IOException {
+        Directory directory = new ByteBuffersDirectory();
+        IndexWriterConfig config = IndexingConfig.fromArgs(Map.of()).apply(new IndexWriterConfig(analyzer));
+        try (IndexWriter writer = new IndexWriter(directory, config);
+             CranfieldReader docs = new CranfieldReader(CRAN)) {
+            BulkIndexer.index(docs, writer, 1, NO_OUTPUT);
+        }
+        return directory;
+    }
+
+    static Map<String, String> queries() throws IOException {
+        return Main.parseCranfieldQueries(QUERIES.toString());
+    }
+}
@@ -0,0 +1,29 @@
+package org.cranfield;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.*;
+
+// -----------------------------
+// Entry point of target/benchmarks.jar. Takes the usual JMH command line
+// (benchmark regex, -f, -wi, -p ...) and defaults to the GC profiler
+// (gc.alloc.rate.norm) with JSON results in target/jmh-result.json.
+// -----------------------------
+public class BenchmarkRunner {
+
+    public static void main(String[] args) throws Exception {
+        CommandLineOptions cmd = new CommandLineOptions(args);
+        ChainedOptionsBuilder options = new OptionsBuilder().parent(cmd);
+        if (cmd.getProfilers().isEmpty()) {
+            options.addProfiler(GCProfiler.class);
+        }
+        if (!cmd.getResultFormat().hasValue()) {
+            options.resultFormat(ResultFormatType.JSON);
+        }
+        if (!cmd.getResult().hasValue()) {
+            options.result("target/jmh-result.json");
+        }
+        new Runner(options.build()).run();
+    }
+}
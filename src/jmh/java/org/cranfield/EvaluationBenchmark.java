@@ -0,0 +1,61 @@
+package org.cranfield;
+
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.search.*;
+import org.apache.lucene.search.similarities.*;
+import org.apache.lucene.store.Directory;
+import org.openjdk.jmh.annotations.*;
+
+// AP/recall (and the rest of the trec_eval measures) over one full run held in memory
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class EvaluationBenchmark {
+
+    private TrecEvaluator evaluator;
+    private List<String> qids;
+    private String[][] docnos;
+    private float[][] scores;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        evaluator = TrecEvaluator.load(BenchmarkData.QRELS, Main.EVAL_CUTOFFS);
+        Map<String, String> queries = BenchmarkData.queries();
+        qids = Main.queryIds(queries);
+        try (Analyzer analyzer = BenchmarkData.analyzer("english");
+             Directory directory = BenchmarkData.buildIndex(analyzer);
+             DirectoryReader reader = DirectoryReader.open(directory)) {
+            IndexSearcher searcher = new IndexSearcher(reader);
+            searcher.setSimilarity(new BM25Similarity());
+            DocnoLookup lookup = DocnoLookup.load(reader);
+            ScoreDoc[][] rankings = Main.searchQueries(searcher, analyzer, queries, qids, SearchOptions.DEFAULTS, null);
+            docnos = new String[rankings.length][];
+            scores = new float[rankings.length][];
+            for (int i = 0; i < rankings.length; i++) {
+                docnos[i] = new String[rankings[i].length];
+                scores[i] = new float[rankings[i].length];
+                for (int rank = 0; rank < rankings[i].length; rank++) {
+                    docnos[i][rank] = lookup.docno(rankings[i][rank].doc);
+                    scores[i][rank] = TrecEvaluator.trecScore(rankings[i][rank].score);
+                }
+            }
+        }
+    }
+
+    @Benchmark
+    public double evaluateRun() {
+        TrecEvaluator.Summary summary = new TrecEvaluator.Summary(evaluator.cutoffs());
+        for (int i = 0; i < qids.size(); i++) {
+            TrecEvaluator.QueryMeasures m = evaluator.evaluate(qids.get(i), docnos[i], scores[i], docnos[i].length);
+            if (m != null) summary.add(m);
+        }
+        return summary.map();
+    }
+}
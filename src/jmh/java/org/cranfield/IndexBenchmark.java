@@ -0,0 +1,40 @@
+package org.cranfield;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.store.Directory;
+import org.openjdk.jmh.annotations.*;
+
+// Full collection build per analyzer, into memory so disk I/O stays out of the numbers
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class IndexBenchmark {
+
+    @Param({"standard", "english", "whitespace"})
+    public String analyzer;
+
+    private Analyzer luceneAnalyzer;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        luceneAnalyzer = BenchmarkData.analyzer(analyzer);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        luceneAnalyzer.close();
+    }
+
+    @Benchmark
+    public Directory indexDocuments() throws IOException {
+        Directory directory = BenchmarkData.buildIndex(luceneAnalyzer);
+        directory.close();
+        return directory;
+    }
+}
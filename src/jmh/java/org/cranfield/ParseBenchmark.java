@@ -0,0 +1,29 @@
+package org.cranfield;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+// Streaming parse of the whole collection (CranfieldReader, which replaced parseCranfieldDocument)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ParseBenchmark {
+
+    @Benchmark
+    public int parseCollection(Blackhole bh) throws IOException {
+        int count = 0;
+        try (CranfieldReader docs = new CranfieldReader(BenchmarkData.CRAN)) {
+            while (docs.hasNext()) {
+                bh.consume(docs.next());
+                count++;
+            }
+        }
+        return count;
+    }
+}
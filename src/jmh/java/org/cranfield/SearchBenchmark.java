@@ -0,0 +1,81 @@
+package org.cranfield;
+
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.queryparser.classic.MultiFieldQueryParser;
+import org.apache.lucene.search.*;
+import org.apache.lucene.search.similarities.*;
+import org.apache.lucene.store.Directory;
+import org.openjdk.jmh.annotations.*;
+
+// Query parsing + top-K search, per analyzer and similarity: single-query
+// latency (sampled, so percentiles are reported) and whole query set throughput
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class SearchBenchmark {
+
+    @Param({"standard", "english", "whitespace"})
+    public String analyzer;
+
+    @Param({"bm25_k11.2_b0.75", "tfidf", "dirichlet"})
+    public String similarity;
+
+    private Analyzer luceneAnalyzer;
+    private Directory directory;
+    private DirectoryReader reader;
+    private IndexSearcher searcher;
+    private Map<String, String> queries;
+    private List<String> qids;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        luceneAnalyzer = BenchmarkData.analyzer(analyzer);
+        directory = BenchmarkData.buildIndex(luceneAnalyzer);
+        reader = DirectoryReader.open(directory);
+        searcher = new IndexSearcher(reader);
+        Similarity sim = Main.createSimilarities().get(similarity);
+        if (sim == null) throw new IllegalArgumentException("Unknown similarity: " + similarity);
+        searcher.setSimilarity(sim);
+        queries = BenchmarkData.queries();
+        qids = Main.queryIds(queries);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        reader.close();
+        directory.close();
+        luceneAnalyzer.close();
+    }
+
+    // MultiFieldQueryParser is not thread-safe: one per benchmark thread
+    @State(Scope.Thread)
+    public static class QueryCursor {
+        MultiFieldQueryParser parser;
+        int next;
+
+        @Setup(Level.Trial)
+        public void setup(SearchBenchmark bench) {
+            parser = new MultiFieldQueryParser(new String[]{"title", "body"}, bench.luceneAnalyzer);
+        }
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SampleTime)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public ScoreDoc[] singleQuery(QueryCursor cursor) throws Exception {
+        String qid = qids.get(cursor.next++ % qids.size());
+        return Main.searchQuery(searcher, cursor.parser, queries.get(qid), SearchOptions.DEFAULTS, null);
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    public ScoreDoc[][] querySet() throws Exception {
+        return Main.searchQueries(searcher, luceneAnalyzer, queries, qids, SearchOptions.DEFAULTS, null);
+    }
+}
@@ -0,0 +1,266 @@
+package org.cranfield;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Supplier;
+
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.document.*;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.VectorSimilarityFunction;
+
+// -----------------------------
+// Parallel ingestion pipeline: the calling thread parses records and feeds a
+// bounded queue, N indexing threads drain it into one shared IndexWriter.
+// Each indexing thread owns a single Document whose Field instances are
+// reused for every record it adds. With one thread documents keep their
+// collection order (and so their docids). Where each record goes is up to
+// a Sink, one per indexing thread; the default adds it to the writer, and
+// SharedAnalysis fans it out to several.
+// -----------------------------
+class BulkIndexer {
+
+    interface Sink {
+        void add(DocStruct d) throws IOException;
+    }
+
+    private static final int QUEUE_CAPACITY = 1024;
+    private static final DocStruct END = new DocStruct("", "", "", "", "");
+
+    static int index(Iterator<DocStruct> docs, IndexWriter writer, int threads, PrintStream out)
+            throws IOException {
+        return index(docs, writer, threads, null, false, out);
+    }
+
+    // With an embedder every document also gets its dense vector; content
+    // adds the concatenated title and body field
+    static int index(Iterator<DocStruct> docs, IndexWriter writer, int threads, Embedder embedder,
+                     boolean content, PrintStream out) throws IOException {
+        return index(docs, threads, () -> {
+            DocFields fields = new DocFields(embedder, content);
+            return d -> writer.addDocument(fields.set(d));
+        }, out);
+    }
+
+    // sinks is called once in each indexing thread
+    static int index(Iterator<DocStruct> docs, int threads, Supplier<Sink> sinks, PrintStream out)
+            throws IOException {
+        BlockingQueue<DocStruct> queue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+        AtomicInteger count = new AtomicInteger();
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+
+        ExecutorService workers = Executors.newFixedThreadPool(threads);
+        try {
+            for (int t = 0; t < threads; t++) {
+                workers.execute(() -> drain(queue, sinks, count, failure, out));
+            }
+            try {
+                while (docs.hasNext() && failure.get() == null) {
+                    queue.put(docs.next());
+                }
+            } finally {
+                // one end marker per worker, even if parsing failed
+                for (int t = 0; t < threads; t++) putUninterruptibly(queue, END);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while indexing");
+        } finally {
+            workers.shutdown();
+            awaitUninterruptibly(workers);
+        }
+
+        Throwable t = failure.get();
+        if (t instanceof IOException) throw (IOException) t;
+        if (t instanceof RuntimeException) throw (RuntimeException) t;
+        if (t != null) throw new IOException("Indexing failed", t);
+        return count.get();
+    }
+
+    private static void drain(BlockingQueue<DocStruct> queue, Supplier<Sink> sinks, AtomicInteger count,
+                              AtomicReference<Throwable> failure, PrintStream out) {
+        Sink sink;
+        try {
+            sink = sinks.get();
+        } catch (Throwable e) {
+            failure.compareAndSet(null, e);
+            sink = null;
+        }
+        while (true) {
+            DocStruct d;
+            try {
+                d = queue.take();
+            } catch (InterruptedException e) {
+                failure.compareAndSet(null, e);
+                return;
+            }
+            if (d == END) return;
+            // after a failure keep taking records so the parser never blocks
+            if (failure.get() != null) continue;
+            try {
+                sink.add(d);
+                int n = count.incrementAndGet();
+                if (n % 200 == 0) out.printf("  indexed %d docs...\n", n);
+            } catch (Throwable e) {
+                failure.compareAndSet(null, e);
+            }
+        }
+    }
+
+    private static void putUninterruptibly(BlockingQueue<DocStruct> queue, DocStruct d) {
+        boolean interrupted = false;
+        while (true) {
+            try {
+                queue.put(d);
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) Thread.currentThread().interrupt();
+    }
+
+    private static void awaitUninterruptibly(ExecutorService workers) {
+        boolean interrupted = false;
+        while (true) {
+            try {
+                if (workers.awaitTermination(1, TimeUnit.MINUTES)) break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) Thread.currentThread().interrupt();
+    }
+
+    // -----------------------------
+    // One reusable Document per indexing thread
+    // -----------------------------
+    static class DocFields {
+        // title and body also keep per-document term vectors, read back as
+        // pseudo-relevance feedback (see Rm3Feedback)
+        static final FieldType TEXT_WITH_VECTORS = new FieldType(TextField.TYPE_STORED);
+        static {
+            TEXT_WITH_VECTORS.setStoreTermVectors(true);
+            TEXT_WITH_VECTORS.freeze();
+        }
+
+        // id is a StringField: searchable as an exact identifier, stored for result output
+        final StringField id = new StringField("id", "", Field.Store.YES);
+        // SHA-256 of the record's text fields, stored so incremental updates can spot changed records
+        final StoredField hash = new StoredField("hash", "");
+        final AnalyzedField title = new AnalyzedField("title", TEXT_WITH_VECTORS);
+        final AnalyzedField author = new AnalyzedField("author", TextField.TYPE_STORED);
+        final AnalyzedField bib = new AnalyzedField("bib", TextField.TYPE_STORED);
+        final AnalyzedField body = new AnalyzedField("body", TEXT_WITH_VECTORS);
+        // title and body again as one searchable (unstored) field, in documents
+        // only when built with content (see IndexingConfig.contentField)
+        final AnalyzedField contentTitle = new AnalyzedField(FieldMode.CONTENT, TextField.TYPE_NOT_STORED);
+        final AnalyzedField contentBody = new AnalyzedField(FieldMode.CONTENT, TextField.TYPE_NOT_STORED);
+        // title and body embedded, for --dense; left out of documents without known terms.
+        // Vectors are unit length, so the dot product is their cosine
+        final KnnFloatVectorField vector;
+        private final Embedder embedder;
+        private final boolean content;
+        final Document doc = new Document();
+        private final MessageDigest digest;
+
+        DocFields() {
+            this(null, false);
+        }
+
+        DocFields(Embedder embedder, boolean content) {
+            this.embedder = embedder;
+            this.content = content;
+            this.vector = embedder == null ? null : new KnnFloatVectorField(DenseRetrieval.FIELD,
+                    new float[embedder.dimensions()], VectorSimilarityFunction.DOT_PRODUCT);
+            try {
+                digest = MessageDigest.getInstance("SHA-256");
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException("SHA-256 not available", e);
+            }
+            doc.add(id);
+            doc.add(hash);
+            doc.add(title);
+            doc.add(author);
+            doc.add(bib);
+            doc.add(body);
+            if (content) {
+                doc.add(contentTitle);
+                doc.add(contentBody);
+            }
+        }
+
+        // Setting the values drops tokens given to the analyzed fields for the previous record
+        Document set(DocStruct d) throws IOException {
+            id.setStringValue(d.id);
+            title.setStringValue(d.title == null ? "" : d.title);
+            author.setStringValue(d.author == null ? "" : d.author);
+            bib.setStringValue(d.bib == null ? "" : d.bib);
+            body.setStringValue(d.body == null ? "" : d.body);
+            if (content) {
+                contentTitle.setStringValue(title.stringValue());
+                contentBody.setStringValue(body.stringValue());
+            }
+            hash.setStringValue(contentHash());
+            if (embedder != null) {
+                doc.removeField(DenseRetrieval.FIELD);
+                float[] v = embedder.embed(title.stringValue(), body.stringValue());
+                if (v != null) {
+                    vector.setVectorValue(v);
+                    doc.add(vector);
+                }
+            }
+            return doc;
+        }
+
+        // The fields the writer's analyzer would tokenize, in document order
+        AnalyzedField[] analyzed() {
+            return content ? new AnalyzedField[]{title, author, bib, body, contentTitle, contentBody}
+                    : new AnalyzedField[]{title, author, bib, body};
+        }
+
+        // Hash of the values just set; fields are separated so text cannot shift between them
+        private String contentHash() {
+            for (Field f : new Field[]{title, author, bib, body}) {
+                digest.update(f.stringValue().getBytes(StandardCharsets.UTF_8));
+                digest.update((byte) 0);
+            }
+            return HexFormat.of().formatHex(digest.digest());
+        }
+    }
+
+    // -----------------------------
+    // A text field whose tokens can be supplied already analyzed. The string
+    // value stays the stored value; setStringValue forgets the tokens, so the
+    // writer's analyzer is used unless setTokens came after it.
+    // -----------------------------
+    static class AnalyzedField extends Field {
+        private TokenStream tokens;
+
+        AnalyzedField(String name, FieldType type) {
+            super(name, "", type);
+        }
+
+        void setTokens(TokenStream tokens) {
+            this.tokens = tokens;
+        }
+
+        @Override
+        public void setStringValue(String value) {
+            super.setStringValue(value);
+            tokens = null;
+        }
+
+        @Override
+        public TokenStream tokenStream(Analyzer analyzer, TokenStream reuse) {
+            return tokens != null ? tokens : super.tokenStream(analyzer, reuse);
+        }
+    }
+}
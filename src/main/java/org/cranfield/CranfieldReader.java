@@ -0,0 +1,109 @@
+package org.cranfield;
+
+import java.io.*;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+
+// -----------------------------
+// Streaming reader for Cranfield-style .I/.T/.A/.B/.W collections.
+// Records are read from a buffered file channel and handed out one at a time,
+// so memory use does not grow with the collection. Field text is accumulated
+// in four builders that are reused for every record.
+//
+// Same rules as the original whole-file parser: a line starting with .I opens
+// a record (id is the text after ".I "), .T/.A/.B/.W switch the current field,
+// any other line is appended to that field followed by a space, and fields
+// are trimmed when the record is emitted.
+// -----------------------------
+class CranfieldReader implements Iterator<DocStruct>, Closeable {
+
+    private static final int BUFFER_CHARS = 1 << 16;
+
+    private final BufferedReader in;
+    private final StringBuilder title = new StringBuilder();
+    private final StringBuilder author = new StringBuilder();
+    private final StringBuilder bib = new StringBuilder();
+    private final StringBuilder body = new StringBuilder();
+
+    private String id = "";
+    private StringBuilder current;   // field receiving content lines, null before the first tag
+    private DocStruct next;
+    private boolean eof;
+
+    CranfieldReader(Path path) throws IOException {
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.READ);
+        this.in = new BufferedReader(Channels.newReader(channel, StandardCharsets.UTF_8), BUFFER_CHARS);
+    }
+
+    @Override
+    public boolean hasNext() {
+        if (next == null && !eof) {
+            try {
+                next = readRecord();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+        return next != null;
+    }
+
+    @Override
+    public DocStruct next() {
+        if (!hasNext()) throw new NoSuchElementException();
+        DocStruct d = next;
+        next = null;
+        return d;
+    }
+
+    private DocStruct readRecord() throws IOException {
+        String line;
+        while ((line = in.readLine()) != null) {
+            if (line.startsWith(".I")) {
+                DocStruct previous = id.isEmpty() ? null : emit();
+                id = line.substring(3).trim(); // after ".I "
+                current = null;
+                if (previous != null) return previous;
+            } else if (line.startsWith(".T")) {
+                current = title;
+            } else if (line.startsWith(".A")) {
+                current = author;
+            } else if (line.startsWith(".B")) {
+                current = bib;
+            } else if (line.startsWith(".W")) {
+                current = body;
+            } else if (current != null) {
+                current.append(line).append(' ');
+            } // else ignore
+        }
+        // last doc
+        eof = true;
+        return id.isEmpty() ? null : emit();
+    }
+
+    private DocStruct emit() {
+        DocStruct d = new DocStruct(id, trimmed(title), trimmed(author), trimmed(bib), trimmed(body));
+        title.setLength(0);
+        author.setLength(0);
+        bib.setLength(0);
+        body.setLength(0);
+        id = "";
+        return d;
+    }
+
+    // String.trim() semantics without building the untrimmed string first
+    private static String trimmed(StringBuilder sb) {
+        int start = 0;
+        int end = sb.length();
+        while (start < end && sb.charAt(start) <= ' ') start++;
+        while (end > start && sb.charAt(end - 1) <= ' ') end--;
+        return sb.substring(start, end);
+    }
+
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+}
@@ -0,0 +1,326 @@
+package org.cranfield;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
+import org.apache.lucene.codecs.*;
+import org.apache.lucene.codecs.lucene100.Lucene100Codec;
+import org.apache.lucene.codecs.lucene99.Lucene99HnswScalarQuantizedVectorsFormat;
+import org.apache.lucene.codecs.lucene99.Lucene99HnswVectorsFormat;
+import org.apache.lucene.codecs.perfield.PerFieldKnnVectorsFormat;
+import org.apache.lucene.index.*;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.IOContext;
+import org.apache.lucene.util.Accountable;
+
+// -----------------------------
+// Hybrid lexical + dense retrieval, read from the command line:
+//   --dense                index a "dense" vector per document (title and body
+//                          through a RandomProjectionEmbedder) in an HNSW graph,
+//                          and fuse each query's kNN hits with its lexical hits
+//   --dense-dims D         vector dimensions (default 256)
+//   --dense-quantize [B]   scalar-quantize the vectors to B bits, 7 (default)
+//                          or 4; kNN search then reads the quantized copy
+//   --dense-k K            nearest neighbours per query (default 50, the run depth)
+//   --fusion F             "rrf" (default): reciprocal rank fusion, 1/(60 + rank);
+//                          "linear": min-max normalized scores
+//   --dense-weight W       share of the dense side in the fusion (default 0.5)
+// The vector settings are part of the index key, so changing them rebuilds
+// the index; without --dense indexes carry no vectors. The fused ranking is
+// the combination's run, reported next to the lexical and dense-only MAP,
+// the kNN and fusion latency and the vectors' disk and heap footprint.
+// -----------------------------
+class DenseRetrieval {
+
+    static final String FIELD = "dense";
+    private static final long SEED = 0x5EED;
+    private static final int RRF_K = 60;
+
+    final int dims;
+    final int bits;         // 0: float32 vectors
+    final int k;
+    final String fusion;
+    final float weight;
+
+    private DenseRetrieval(int dims, int bits, int k, String fusion, float weight) {
+        if (dims < 1 || dims > KnnVectorsFormat.DEFAULT_MAX_DIMENSIONS) {
+            throw new IllegalArgumentException("--dense-dims must be in [1, "
+                    + KnnVectorsFormat.DEFAULT_MAX_DIMENSIONS + "]: " + dims);
+        }
+        if (bits != 0 && bits != 4 && bits != 7) {
+            throw new IllegalArgumentException("--dense-quantize must be 7 or 4: " + bits);
+        }
+        if (k < 1) throw new IllegalArgumentException("--dense-k must be >= 1: " + k);
+        if (!fusion.equals("rrf") && !fusion.equals("linear")) {
+            throw new IllegalArgumentException("--fusion must be rrf or linear: " + fusion);
+        }
+        if (weight < 0 || weight > 1) throw new IllegalArgumentException("--dense-weight must be in [0, 1]: " + weight);
+        this.dims = dims;
+        this.bits = bits;
+        this.k = k;
+        this.fusion = fusion;
+        this.weight = weight;
+    }
+
+    // null unless --dense is given
+    static DenseRetrieval fromArgs(Map<String, String> amap) {
+        if (!amap.containsKey("dense")) return null;
+        String quantize = amap.get("dense-quantize");
+        return new DenseRetrieval(
+                Integer.parseInt(amap.getOrDefault("dense-dims", "256")),
+                quantize == null ? 0 : quantize.equals("true") ? 7 : Integer.parseInt(quantize),
+                Integer.parseInt(amap.getOrDefault("dense-k", "50")),
+                amap.getOrDefault("fusion", "rrf"),
+                Float.parseFloat(amap.getOrDefault("dense-weight", "0.5")));
+    }
+
+    // Index key component: everything that shapes the stored vectors
+    String id() {
+        return "dense-rp" + dims + "s" + Long.toHexString(SEED) + (bits == 0 ? "" : "q" + bits);
+    }
+
+    String describe() {
+        return String.format("random projection %dd, %s HNSW, k=%d, %s fusion, dense weight %s", dims,
+                bits == 0 ? "float32" : bits + "-bit quantized", k, fusion, weight);
+    }
+
+    // -----------------------------
+    // Index side
+    // -----------------------------
+
+    // Document embedder: idf from one counting pass over the collection
+    Embedder indexEmbedder(Path cranPath, Analyzer analyzer) throws IOException {
+        Map<String, Integer> docFreqs = new HashMap<>();
+        int numDocs = 0;
+        Set<String> seen = new HashSet<>();
+        try (CranfieldReader docs = new CranfieldReader(cranPath)) {
+            while (docs.hasNext()) {
+                DocStruct d = docs.next();
+                seen.clear();
+                for (String text : new String[] {d.title, d.body}) {
+                    if (text == null || text.isEmpty()) continue;
+                    try (TokenStream ts = analyzer.tokenStream(FieldMode.CONTENT, text)) {
+                        CharTermAttribute term = ts.addAttribute(CharTermAttribute.class);
+                        ts.reset();
+                        while (ts.incrementToken()) seen.add(term.toString());
+                        ts.end();
+                    }
+                }
+                for (String term : seen) docFreqs.merge(term, 1, Integer::sum);
+                numDocs++;
+            }
+        }
+        return new RandomProjectionEmbedder(analyzer, dims, SEED, numDocs, term -> docFreqs.getOrDefault(term, 0));
+    }
+
+    Embedder queryEmbedder(IndexReader reader, Analyzer analyzer) {
+        return RandomProjectionEmbedder.fromIndex(reader, analyzer, dims, SEED);
+    }
+
+    // Time spent writing vectors: HNSW insertion as documents are added, plus
+    // the graph work of flushes and merges (summed over indexing threads)
+    static class BuildTimer {
+        private final LongAdder nanos = new LongAdder();
+        private final LongAdder vectors = new LongAdder();
+
+        double seconds() {
+            return nanos.sum() / 1e9;
+        }
+
+        long vectors() {
+            return vectors.sum();
+        }
+    }
+
+    // Sets the codec that writes FIELD as (quantized) HNSW, timed
+    BuildTimer apply(IndexWriterConfig config) {
+        BuildTimer timer = new BuildTimer();
+        KnnVectorsFormat format = bits == 0
+                ? new Lucene99HnswVectorsFormat()
+                : new Lucene99HnswScalarQuantizedVectorsFormat(Lucene99HnswVectorsFormat.DEFAULT_MAX_CONN,
+                        Lucene99HnswVectorsFormat.DEFAULT_BEAM_WIDTH, 1, bits, false, null, null);
+        KnnVectorsFormat timed = new TimedVectorsFormat(format, timer);
+        config.setCodec(new Lucene100Codec() {
+            @Override
+            public KnnVectorsFormat getKnnVectorsFormatForField(String field) {
+                return timed;
+            }
+        });
+        return timer;
+    }
+
+    // Writes under the delegate's name, so segments are read back by the
+    // delegate itself (through SPI) and carry no trace of the timing
+    private static class TimedVectorsFormat extends KnnVectorsFormat {
+        private final KnnVectorsFormat delegate;
+        private final BuildTimer timer;
+
+        TimedVectorsFormat(KnnVectorsFormat delegate, BuildTimer timer) {
+            super(delegate.getName());
+            this.delegate = delegate;
+            this.timer = timer;
+        }
+
+        @Override
+        public KnnVectorsWriter fieldsWriter(SegmentWriteState state) throws IOException {
+            KnnVectorsWriter writer = delegate.fieldsWriter(state);
+            return new KnnVectorsWriter() {
+                @Override
+                public KnnFieldVectorsWriter<?> addField(FieldInfo fieldInfo) throws IOException {
+                    return timed(writer.addField(fieldInfo));
+                }
+
+                @Override
+                public void flush(int maxDoc, Sorter.DocMap sortMap) throws IOException {
+                    long start = System.nanoTime();
+                    writer.flush(maxDoc, sortMap);
+                    timer.nanos.add(System.nanoTime() - start);
+                }
+
+                @Override
+                public void mergeOneField(FieldInfo fieldInfo, MergeState mergeState) throws IOException {
+                    long start = System.nanoTime();
+                    writer.mergeOneField(fieldInfo, mergeState);
+                    timer.nanos.add(System.nanoTime() - start);
+                }
+
+                @Override
+                public void finish() throws IOException {
+                    writer.finish();
+                }
+
+                @Override
+                public void close() throws IOException {
+                    writer.close();
+                }
+
+                @Override
+                public long ramBytesUsed() {
+                    return writer.ramBytesUsed();
+                }
+            };
+        }
+
+        private <T> KnnFieldVectorsWriter<T> timed(KnnFieldVectorsWriter<T> writer) {
+            return new KnnFieldVectorsWriter<>() {
+                @Override
+                public void addValue(int docID, T vectorValue) throws IOException {
+                    long start = System.nanoTime();
+                    writer.addValue(docID, vectorValue);
+                    timer.nanos.add(System.nanoTime() - start);
+                    timer.vectors.increment();
+                }
+
+                @Override
+                public T copyValue(T vectorValue) {
+                    return writer.copyValue(vectorValue);
+                }
+
+                @Override
+                public long ramBytesUsed() {
+                    return writer.ramBytesUsed();
+                }
+            };
+        }
+
+        @Override
+        public KnnVectorsReader fieldsReader(SegmentReadState state) throws IOException {
+            return delegate.fieldsReader(state);
+        }
+
+        @Override
+        public int getMaxDimensions(String fieldName) {
+            return delegate.getMaxDimensions(fieldName);
+        }
+    }
+
+    // -----------------------------
+    // Search side
+    // -----------------------------
+
+    // Union of both hit lists, best TOP_K by fused score (ties by docid)
+    ScoreDoc[] fuse(ScoreDoc[] lexical, ScoreDoc[] dense, int topK) {
+        Map<Integer, Float> fused = new HashMap<>();
+        if (fusion.equals("rrf")) {
+            for (int r = 0; r < lexical.length; r++) {
+                fused.merge(lexical[r].doc, (1 - weight) / (RRF_K + r + 1), Float::sum);
+            }
+            for (int r = 0; r < dense.length; r++) {
+                fused.merge(dense[r].doc, weight / (RRF_K + r + 1), Float::sum);
+            }
+        } else {
+            addNormalized(fused, lexical, 1 - weight);
+            addNormalized(fused, dense, weight);
+        }
+        ScoreDoc[] hits = new ScoreDoc[fused.size()];
+        int i = 0;
+        for (Map.Entry<Integer, Float> e : fused.entrySet()) hits[i++] = new ScoreDoc(e.getKey(), e.getValue());
+        Arrays.sort(hits, (a, b) -> a.score != b.score ? Float.compare(b.score, a.score) : Integer.compare(a.doc, b.doc));
+        return hits.length <= topK ? hits : Arrays.copyOf(hits, topK);
+    }
+
+    // Scores mapped to [0, 1] within the list (all 1 when they are equal)
+    private static void addNormalized(Map<Integer, Float> fused, ScoreDoc[] hits, float w) {
+        if (hits.length == 0) return;
+        float max = hits[0].score, min = hits[0].score;
+        for (ScoreDoc hit : hits) {
+            max = Math.max(max, hit.score);
+            min = Math.min(min, hit.score);
+        }
+        for (ScoreDoc hit : hits) {
+            float norm = max == min ? 1f : (hit.score - min) / (max - min);
+            fused.merge(hit.doc, w * norm, Float::sum);
+        }
+    }
+
+    // -----------------------------
+    // Footprint: on-disk bytes of the graph (.vex), the raw float vectors
+    // (.vec) and the quantized ones (.veq), compound files included, and the
+    // heap held by the open vector readers. kNN search touches the graph and
+    // the quantized vectors when there are any, the raw ones otherwise.
+    // -----------------------------
+    record Footprint(long graphBytes, long rawBytes, long quantizedBytes, long heapBytes) {
+        long searchedBytes() {
+            return graphBytes + (quantizedBytes > 0 ? quantizedBytes : rawBytes);
+        }
+    }
+
+    static Footprint footprint(IndexReader reader) throws IOException {
+        long graph = 0, raw = 0, quantized = 0, heap = 0;
+        for (LeafReaderContext ctx : reader.leaves()) {
+            if (!(FilterLeafReader.unwrap(ctx.reader()) instanceof SegmentReader segment)) continue;
+            KnnVectorsReader vectors = segment.getVectorReader();
+            if (vectors instanceof PerFieldKnnVectorsFormat.FieldsReader perField) {
+                vectors = perField.getFieldReader(FIELD);
+            }
+            if (vectors instanceof Accountable accountable) heap += accountable.ramBytesUsed();
+
+            SegmentInfo info = segment.getSegmentInfo().info;
+            Directory dir = info.getUseCompoundFile()
+                    ? info.getCodec().compoundFormat().getCompoundReader(info.dir, info, IOContext.READONCE)
+                    : info.dir;
+            try {
+                Collection<String> files = info.getUseCompoundFile() ? Arrays.asList(dir.listAll()) : info.files();
+                for (String file : files) {
+                    String extension = IndexFileNames.getExtension(file);
+                    if (extension == null) continue;
+                    switch (extension) {
+                        case "vex" -> graph += dir.fileLength(file);
+                        case "vec" -> raw += dir.fileLength(file);
+                        case "veq" -> quantized += dir.fileLength(file);
+                        default -> { }
+                    }
+                }
+            } finally {
+                if (dir != info.dir) dir.close();
+            }
+        }
+        return new Footprint(graph, raw, quantized, heap);
+    }
+}
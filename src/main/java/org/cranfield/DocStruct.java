@@ -0,0 +1,19 @@
+package org.cranfield;
+
+// -----------------------------
+// Document container
+// -----------------------------
+class DocStruct {
+    String id;
+    String title;
+    String author;
+    String bib;
+    String body;
+    DocStruct(String id, String title, String author, String bib, String body) {
+        this.id = id;
+        this.title = title;
+        this.author = author;
+        this.bib = bib;
+        this.body = body;
+    }
+}
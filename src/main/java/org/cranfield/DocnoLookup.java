@@ -0,0 +1,42 @@
+package org.cranfield;
+
+import java.io.IOException;
+import java.util.*;
+
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.MultiBits;
+import org.apache.lucene.index.StoredFields;
+import org.apache.lucene.util.Bits;
+
+// -----------------------------
+// docid -> docno resolution for one reader.
+// The stored "id" field is read once per document when the reader is opened,
+// so ranking and evaluation never touch stored fields again. Only the id is
+// loaded; title/body/bib are not materialised.
+// -----------------------------
+class DocnoLookup {
+
+    private static final Set<String> ID_FIELD = Collections.singleton("id");
+
+    private final String[] docnos;
+
+    private DocnoLookup(String[] docnos) {
+        this.docnos = docnos;
+    }
+
+    static DocnoLookup load(IndexReader reader) throws IOException {
+        int maxDoc = reader.maxDoc();
+        String[] docnos = new String[maxDoc];
+        Bits liveDocs = MultiBits.getLiveDocs(reader);
+        StoredFields storedFields = reader.storedFields();
+        for (int docid = 0; docid < maxDoc; docid++) {
+            if (liveDocs != null && !liveDocs.get(docid)) continue;
+            docnos[docid] = storedFields.document(docid, ID_FIELD).get("id");
+        }
+        return new DocnoLookup(docnos);
+    }
+
+    String docno(int docid) {
+        return docnos[docid];
+    }
+}
@@ -0,0 +1,20 @@
+package org.cranfield;
+
+import java.io.IOException;
+
+// -----------------------------
+// Text to a dense vector, for the document vectors written at index time and
+// the query vectors searched against them (see DenseRetrieval). Vectors are
+// only comparable between embedders with the same id().
+// -----------------------------
+interface Embedder {
+
+    int dimensions();
+
+    // Names the vector space (model and parameters); part of the index key
+    String id();
+
+    // Unit-length vector of the texts taken together, or null when none of
+    // their terms is known to the embedder
+    float[] embed(String... texts) throws IOException;
+}
@@ -0,0 +1,115 @@
+package org.cranfield;
+
+import java.util.*;
+
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.queryparser.classic.MultiFieldQueryParser;
+import org.apache.lucene.queryparser.classic.QueryParser;
+import org.apache.lucene.sandbox.search.CombinedFieldQuery;
+import org.apache.lucene.search.BoostQuery;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.similarities.BM25Similarity;
+import org.apache.lucene.search.similarities.Similarity;
+
+// -----------------------------
+// How query terms are matched against title and body, read from the command line:
+//   --field-mode multi    (default) every term becomes one clause per field,
+//                         scored independently (MultiFieldQueryParser)
+//   --field-mode bm25f    one CombinedFieldQuery per term: title and body are
+//                         scored as a single weighted field (BM25F). BM25
+//                         similarities only; others keep the multi-field expansion
+//   --field-mode concat   one clause per term on "content", the title+body
+//                         field built at ingestion time
+//   --field-weights W     bm25f field weights, e.g. "title=2,body=1" (default 1 each)
+// Anything other than multi makes each combination also run the multi-field
+// expansion and report latency, clauses and postings against it.
+// -----------------------------
+class FieldMode {
+
+    // Title and body concatenated, indexed (not stored) alongside them when a
+    // mode or --dense needs it
+    static final String CONTENT = "content";
+
+    static final FieldMode MULTI = new FieldMode("multi", Map.of());
+
+    final String kind;
+    final Map<String, Float> weights;
+
+    private FieldMode(String kind, Map<String, Float> weights) {
+        if (!kind.equals("multi") && !kind.equals("bm25f") && !kind.equals("concat")) {
+            throw new IllegalArgumentException("--field-mode must be multi, bm25f or concat: " + kind);
+        }
+        this.kind = kind;
+        this.weights = weights;
+    }
+
+    static FieldMode fromArgs(Map<String, String> amap) {
+        String kind = amap.getOrDefault("field-mode", "multi");
+        if (kind.equals("multi")) return MULTI;
+        Map<String, Float> weights = new LinkedHashMap<>();
+        for (String field : Main.QUERY_FIELDS) weights.put(field, 1f);
+        if (amap.containsKey("field-weights")) {
+            for (String pair : amap.get("field-weights").split(",")) {
+                String[] kv = pair.split("=", 2);
+                if (kv.length != 2 || !weights.containsKey(kv[0].trim())) {
+                    throw new IllegalArgumentException("--field-weights expects title=W,body=W: " + pair);
+                }
+                float w = Float.parseFloat(kv[1].trim());
+                // CombinedFieldQuery only accepts weights >= 1
+                if (w < 1f) throw new IllegalArgumentException("--field-weights must be >= 1: " + pair);
+                weights.put(kv[0].trim(), w);
+            }
+        }
+        return new FieldMode(kind, Collections.unmodifiableMap(weights));
+    }
+
+    // Whether queries search the content field, which is then indexed (see IndexingConfig)
+    boolean searchesContent() {
+        return kind.equals("concat");
+    }
+
+    // bm25f relies on BM25's saturation over the combined frequency
+    boolean supports(Similarity similarity) {
+        return !kind.equals("bm25f") || similarity instanceof BM25Similarity;
+    }
+
+    String describe() {
+        if (!kind.equals("bm25f")) return kind;
+        StringBuilder sb = new StringBuilder("bm25f");
+        for (Map.Entry<String, Float> e : weights.entrySet()) sb.append(' ').append(e.getKey()).append('=').append(e.getValue());
+        return sb.toString();
+    }
+
+    // Identifies the parser's output in the query cache
+    String[] cacheFields() {
+        switch (kind) {
+            case "bm25f":
+                return new String[] {describe()};
+            case "concat":
+                return new String[] {CONTENT};
+            default:
+                return Main.QUERY_FIELDS;
+        }
+    }
+
+    // A new parser (QueryParser is not thread-safe)
+    QueryParser newParser(Analyzer analyzer) {
+        switch (kind) {
+            case "bm25f":
+                return new QueryParser(CONTENT, analyzer) {
+                    @Override
+                    protected Query newTermQuery(Term term, float boost) {
+                        CombinedFieldQuery.Builder builder = new CombinedFieldQuery.Builder();
+                        for (Map.Entry<String, Float> e : weights.entrySet()) builder.addField(e.getKey(), e.getValue());
+                        Query query = builder.addTerm(term.bytes()).build();
+                        return boost == 1f ? query : new BoostQuery(query, boost);
+                    }
+                };
+            case "concat":
+                return new QueryParser(CONTENT, analyzer);
+            default:
+                return new MultiFieldQueryParser(Main.QUERY_FIELDS, analyzer);
+        }
+    }
+}
@@ -0,0 +1,257 @@
+package org.cranfield;
+
+import java.io.IOException;
+import java.util.*;
+
+import org.apache.lucene.index.*;
+import org.apache.lucene.search.*;
+import org.apache.lucene.search.similarities.Similarity;
+import org.apache.lucene.util.Bits;
+
+// -----------------------------
+// Scores one query under many similarities from a single postings traversal.
+//
+// The rewritten query must be a tree of pure disjunctions (SHOULD-only
+// BooleanQuery), BoostQuery and TermQuery leaves, which is what
+// MultiFieldQueryParser produces for the escaped Cranfield queries. Each
+// leaf's postings are read once per segment into doc/freq/norm arrays; every
+// similarity then scores those postings through its own SimScorer, built
+// from the same statistics TermWeight uses, and disjunctions are summed in
+// double and rounded to float as Lucene's disjunction scorers do. Each
+// similarity keeps its own top-K HitQueue (score desc, docid asc), so the
+// rankings match a separate IndexSearcher.search per similarity exactly.
+// -----------------------------
+class GridScorer {
+
+    // Rankings per similarity, plus the number of live documents that matched
+    record Result(ScoreDoc[][] hits, long matches) {}
+
+    private sealed interface Node permits Leaf, Sum {}
+    private record Leaf(int index) implements Node {}
+    private record Sum(Node[] children) implements Node {}
+    private record LeafTerm(Term term, float boost) {}
+
+    private static final int WINDOW = 2048;
+
+    private final IndexSearcher searcher;
+    private final Similarity[] similarities;
+
+    GridScorer(IndexReader reader, List<Similarity> similarities) {
+        this.searcher = new IndexSearcher(reader);
+        this.similarities = similarities.toArray(new Similarity[0]);
+    }
+
+    // Top-K per similarity, in the given similarity order; null if the query
+    // has a shape this scorer cannot reproduce exactly
+    Result search(Query query, int topK) throws IOException {
+        List<LeafTerm> terms = new ArrayList<>();
+        Node root = compile(searcher.rewrite(query), 1f, terms);
+        if (root == null) return null;
+
+        int nsim = similarities.length;
+        int nterm = terms.size();
+
+        // Per term and similarity scorers over index-wide statistics; null when the term is absent
+        Similarity.SimScorer[][] scorers = new Similarity.SimScorer[nterm][];
+        for (int t = 0; t < nterm; t++) {
+            LeafTerm lt = terms.get(t);
+            TermStates states = TermStates.build(searcher, lt.term(), true);
+            CollectionStatistics collectionStats = searcher.collectionStatistics(lt.term().field());
+            if (states.docFreq() == 0 || collectionStats == null) continue;
+            TermStatistics termStats = searcher.termStatistics(lt.term(), states.docFreq(), states.totalTermFreq());
+            scorers[t] = new Similarity.SimScorer[nsim];
+            for (int s = 0; s < nsim; s++) {
+                scorers[t][s] = similarities[s].scorer(lt.boost(), collectionStats, termStats);
+            }
+        }
+
+        HitQueue[] queues = new HitQueue[nsim];
+        ScoreDoc[] spare = new ScoreDoc[nsim];   // entry evicted from or rejected by each queue, reused
+        for (int s = 0; s < nsim; s++) queues[s] = new HitQueue(topK, false);
+        long matches = 0;
+
+        int[][] docs = new int[nterm][];
+        float[][][] scores = new float[nterm][][];   // [term][similarity][posting]
+        int[] upto = new int[nterm];
+        int[] cursor = new int[nterm];
+        float[] docScores = new float[nterm];
+        boolean[] matched = new boolean[nterm];
+
+        // A plain disjunction of terms sums its clauses once: a double sum of floats
+        // is exact here, so term-at-a-time accumulation gives the same float
+        boolean flat = root instanceof Leaf
+                || Arrays.stream(((Sum) root).children()).allMatch(c -> c instanceof Leaf);
+        double[][] windowScores = flat ? new double[nsim][WINDOW] : null;
+        long[] windowMatches = flat ? new long[WINDOW / 64] : null;
+
+        for (LeafReaderContext ctx : searcher.getIndexReader().leaves()) {
+            LeafReader leaf = ctx.reader();
+            Bits liveDocs = leaf.getLiveDocs();
+
+            // 1. one traversal per term: docs, freqs and norms, scored for every similarity
+            for (int t = 0; t < nterm; t++) {
+                upto[t] = 0;
+                cursor[t] = 0;
+                if (scorers[t] == null) continue;
+                Term term = terms.get(t).term();
+                PostingsEnum postings = leaf.postings(term, PostingsEnum.FREQS);
+                if (postings == null) continue;
+                NumericDocValues norms = leaf.getNormValues(term.field());
+
+                int n = 0;
+                int[] d = docs[t] == null ? new int[64] : docs[t];
+                int[] freqs = new int[d.length];
+                long[] normValues = new long[d.length];
+                for (int doc = postings.nextDoc(); doc != DocIdSetIterator.NO_MORE_DOCS; doc = postings.nextDoc()) {
+                    if (n == d.length) {
+                        d = Arrays.copyOf(d, n * 2);
+                        freqs = Arrays.copyOf(freqs, n * 2);
+                        normValues = Arrays.copyOf(normValues, n * 2);
+                    }
+                    d[n] = doc;
+                    freqs[n] = postings.freq();
+                    normValues[n] = norms != null && norms.advanceExact(doc) ? norms.longValue() : 1L;
+                    n++;
+                }
+                docs[t] = d;
+                upto[t] = n;
+
+                float[][] s = new float[nsim][n];
+                for (int sim = 0; sim < nsim; sim++) {
+                    Similarity.SimScorer scorer = scorers[t][sim];
+                    float[] out = s[sim];
+                    for (int i = 0; i < n; i++) out[i] = scorer.score(freqs[i], normValues[i]);
+                }
+                scores[t] = s;
+            }
+
+            if (flat) {
+                // 2a. single disjunction of terms: accumulate every similarity term-at-a-time
+                // over windows of docs, then collect each window in docid order
+                for (int base = 0; base < leaf.maxDoc(); base += WINDOW) {
+                    int end = Math.min(base + WINDOW, leaf.maxDoc());
+                    for (int t = 0; t < nterm; t++) {
+                        int from = cursor[t];
+                        int to = from;
+                        int[] d = docs[t];
+                        while (to < upto[t] && d[to] < end) {
+                            int i = d[to] - base;
+                            windowMatches[i >>> 6] |= 1L << i;
+                            to++;
+                        }
+                        if (to == from) continue;
+                        for (int sim = 0; sim < nsim; sim++) {
+                            float[] sc = scores[t][sim];
+                            double[] acc = windowScores[sim];
+                            for (int i = from; i < to; i++) acc[d[i] - base] += sc[i];
+                        }
+                        cursor[t] = to;
+                    }
+                    for (int word = 0; word < windowMatches.length; word++) {
+                        long bits = windowMatches[word];
+                        windowMatches[word] = 0L;
+                        while (bits != 0L) {
+                            int i = word << 6 | Long.numberOfTrailingZeros(bits);
+                            bits &= bits - 1;
+                            int doc = base + i;
+                            boolean live = liveDocs == null || liveDocs.get(doc);
+                            if (live) matches++;
+                            for (int sim = 0; sim < nsim; sim++) {
+                                float score = (float) windowScores[sim][i];
+                                windowScores[sim][i] = 0d;
+                                if (live) spare[sim] = collect(queues[sim], spare[sim], ctx.docBase + doc, score);
+                            }
+                        }
+                    }
+                }
+                continue;
+            }
+
+            // 2b. nested disjunctions: doc-at-a-time merge of the buffered postings,
+            // scoring the query tree for every similarity per doc
+            while (true) {
+                int doc = DocIdSetIterator.NO_MORE_DOCS;
+                for (int t = 0; t < nterm; t++) {
+                    if (cursor[t] < upto[t]) doc = Math.min(doc, docs[t][cursor[t]]);
+                }
+                if (doc == DocIdSetIterator.NO_MORE_DOCS) break;
+
+                for (int t = 0; t < nterm; t++) {
+                    matched[t] = cursor[t] < upto[t] && docs[t][cursor[t]] == doc;
+                }
+                if (liveDocs == null || liveDocs.get(doc)) {
+                    matches++;
+                    for (int sim = 0; sim < nsim; sim++) {
+                        for (int t = 0; t < nterm; t++) {
+                            if (matched[t]) docScores[t] = scores[t][sim][cursor[t]];
+                        }
+                        spare[sim] = collect(queues[sim], spare[sim], ctx.docBase + doc,
+                                score(root, docScores, matched));
+                    }
+                }
+                for (int t = 0; t < nterm; t++) {
+                    if (matched[t]) cursor[t]++;
+                }
+            }
+        }
+
+        ScoreDoc[][] hits = new ScoreDoc[nsim][];
+        for (int s = 0; s < nsim; s++) {
+            ScoreDoc[] top = new ScoreDoc[queues[s].size()];
+            for (int i = top.length - 1; i >= 0; i--) top[i] = queues[s].pop();
+            hits[s] = top;
+        }
+        return new Result(hits, matches);
+    }
+
+    // Offers one hit to a queue, returning the entry to reuse for the next offer
+    private static ScoreDoc collect(HitQueue queue, ScoreDoc spare, int doc, float score) {
+        ScoreDoc sd = spare == null ? new ScoreDoc(doc, score) : spare;
+        sd.doc = doc;
+        sd.score = score;
+        return queue.insertWithOverflow(sd);
+    }
+
+    // Flattens the rewritten query into leaves with their accumulated boosts
+    private static Node compile(Query query, float boost, List<LeafTerm> terms) {
+        if (query instanceof TermQuery tq) {
+            terms.add(new LeafTerm(tq.getTerm(), boost));
+            return new Leaf(terms.size() - 1);
+        }
+        if (query instanceof BoostQuery bq) {
+            return compile(bq.getQuery(), boost * bq.getBoost(), terms);
+        }
+        if (query instanceof MatchNoDocsQuery) {
+            return new Sum(new Node[0]);
+        }
+        if (query instanceof BooleanQuery bq) {
+            if (bq.getMinimumNumberShouldMatch() > 1) return null;
+            Node[] children = new Node[bq.clauses().size()];
+            for (int i = 0; i < children.length; i++) {
+                BooleanClause clause = bq.clauses().get(i);
+                if (clause.occur() != BooleanClause.Occur.SHOULD) return null;
+                children[i] = compile(clause.query(), boost, terms);
+                if (children[i] == null) return null;
+            }
+            return new Sum(children);
+        }
+        return null;
+    }
+
+    // NaN marks "no match" below a disjunction
+    private static float score(Node node, float[] docScores, boolean[] matched) {
+        if (node instanceof Leaf leaf) {
+            return matched[leaf.index()] ? docScores[leaf.index()] : Float.NaN;
+        }
+        double sum = 0;
+        boolean any = false;
+        for (Node child : ((Sum) node).children()) {
+            float s = score(child, docScores, matched);
+            if (!Float.isNaN(s)) {
+                sum += s;
+                any = true;
+            }
+        }
+        return any ? (float) sum : Float.NaN;
+    }
+}
@@ -0,0 +1,81 @@
+package org.cranfield;
+
+import java.io.*;
+import java.nio.file.*;
+import java.util.Map;
+
+import org.apache.lucene.store.*;
+
+// -----------------------------
+// Where the analyzer indexes live, read from the command line:
+//   --store S     "fs" (default, FSDirectory.open picks the platform default),
+//                 "mmap" (MMapDirectory), "nio" (NIOFSDirectory) or
+//                 "memory" (ByteBuffersDirectory: built per run, never written
+//                 to disk, so no index_* directories are left behind)
+//   --warmup      preload the index before any query is timed: mmap indexes
+//                 are mapped with preload, others are read through once
+// -----------------------------
+class IndexStore {
+
+    private static final int WARMUP_BUFFER = 1 << 16;
+
+    final String type;
+    final boolean warmup;
+
+    private IndexStore(String type, boolean warmup) {
+        if (!type.equals("fs") && !type.equals("mmap") && !type.equals("nio") && !type.equals("memory")) {
+            throw new IllegalArgumentException("--store must be fs, mmap, nio or memory: " + type);
+        }
+        this.type = type;
+        this.warmup = warmup;
+    }
+
+    static IndexStore fromArgs(Map<String, String> amap) {
+        return new IndexStore(amap.getOrDefault("store", "fs"), amap.containsKey("warmup"));
+    }
+
+    // In-memory indexes start empty every run, so they are always rebuilt
+    boolean persistent() {
+        return !type.equals("memory");
+    }
+
+    Directory open(Path indexPath) throws IOException {
+        switch (type) {
+            case "memory":
+                return new ByteBuffersDirectory();
+            case "mmap":
+                MMapDirectory mmap = new MMapDirectory(indexPath);
+                if (warmup) mmap.setPreload(MMapDirectory.ALL_FILES);
+                return mmap;
+            case "nio":
+                return new NIOFSDirectory(indexPath);
+            default:
+                return FSDirectory.open(indexPath);
+        }
+    }
+
+    // Reads every file of the index once so searches start against resident
+    // pages. Memory indexes are resident already and mmap ones are preloaded
+    // when the reader maps them, so both skip this.
+    void warm(Directory directory, PrintStream out) throws IOException {
+        if (!warmup || !persistent() || type.equals("mmap")) return;
+        long start = System.nanoTime();
+        long bytes = 0;
+        byte[] buffer = new byte[WARMUP_BUFFER];
+        String[] files = directory.listAll();
+        for (String file : files) {
+            if (file.equals("write.lock")) continue;
+            try (IndexInput in = directory.openInput(file, IOContext.READONCE)) {
+                long remaining = in.length();
+                while (remaining > 0) {
+                    int n = (int) Math.min(buffer.length, remaining);
+                    in.readBytes(buffer, 0, n);
+                    remaining -= n;
+                }
+                bytes += in.length();
+            }
+        }
+        out.printf("Warm-up: read %d files, %.2f MB in %.1f ms\n",
+                files.length, bytes / (1024.0 * 1024.0), (System.nanoTime() - start) / 1e6);
+    }
+}
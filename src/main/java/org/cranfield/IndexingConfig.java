@@ -0,0 +1,118 @@
+package org.cranfield;
+
+import java.util.Map;
+
+import org.apache.lucene.index.*;
+
+// -----------------------------
+// Index build settings, read from the command line:
+//   --index-threads N        indexing threads sharing one IndexWriter (default 1)
+//   --ram-buffer-mb M        IndexWriter RAM buffer before a flush (Lucene default 16)
+//   --merge-scheduler S      "concurrent" (default) or "serial"
+//   --compound-files B       write compound segment files (default true)
+//   --force-merge            merge down to one segment after indexing
+//   --segments N             build the index as N segments of about equal size
+//                            (the unit --slices searches in parallel); an
+//                            index with another segment count is rebuilt
+//   --reindex                rebuild even when the index is up to date
+//   --incremental            when only the collection changed, apply the added,
+//                            changed and removed records to the existing index
+//                            instead of rebuilding it
+//   --dense ...              also index a dense vector per document (see DenseRetrieval)
+//   --shared-analysis        build the indexes of analyzers with a common
+//                            tokenizer in one pass over the collection, each
+//                            field tokenized once (see SharedAnalysis)
+//   --compare-analysis       with --shared-analysis, also time analysis alone
+//                            both ways over the collection and report the CPU
+//                            saved (extra passes; off by default)
+// Title and body are also indexed again as one "content" field only when
+// something searches it: --field-mode concat, or --dense (whose query
+// embedder reads its document frequencies). Indexes with and without it
+// are keyed apart.
+// -----------------------------
+class IndexingConfig {
+
+    final int threads;
+    final double ramBufferMb;
+    final String mergeScheduler;
+    final boolean compoundFiles;
+    final boolean forceMerge;
+    final boolean reindex;
+    final boolean incremental;
+    final int segments;   // 0: whatever flushing and merging produce
+    final DenseRetrieval dense;   // null: no vectors
+    final boolean sharedAnalysis;
+    final boolean compareAnalysis;
+    final boolean contentField;
+
+    private IndexingConfig(int threads, double ramBufferMb, String mergeScheduler, boolean compoundFiles,
+                           boolean forceMerge, boolean reindex, boolean incremental, int segments,
+                           DenseRetrieval dense, boolean sharedAnalysis, boolean compareAnalysis,
+                           boolean contentField) {
+        if (threads < 1) throw new IllegalArgumentException("--index-threads must be >= 1");
+        if (segments < 0) throw new IllegalArgumentException("--segments must be >= 0 (0: no target)");
+        if (segments > 0 && forceMerge) {
+            throw new IllegalArgumentException("--segments and --force-merge are exclusive");
+        }
+        if (!mergeScheduler.equals("concurrent") && !mergeScheduler.equals("serial")) {
+            throw new IllegalArgumentException("--merge-scheduler must be concurrent or serial: " + mergeScheduler);
+        }
+        if (compareAnalysis && !sharedAnalysis) {
+            throw new IllegalArgumentException("--compare-analysis requires --shared-analysis");
+        }
+        this.threads = threads;
+        this.ramBufferMb = ramBufferMb;
+        this.mergeScheduler = mergeScheduler;
+        this.compoundFiles = compoundFiles;
+        this.forceMerge = forceMerge;
+        this.reindex = reindex;
+        this.incremental = incremental;
+        this.segments = segments;
+        this.dense = dense;
+        this.sharedAnalysis = sharedAnalysis;
+        this.compareAnalysis = compareAnalysis;
+        this.contentField = contentField;
+    }
+
+    static IndexingConfig fromArgs(Map<String, String> amap) {
+        DenseRetrieval dense = DenseRetrieval.fromArgs(amap);
+        return new IndexingConfig(
+                Integer.parseInt(amap.getOrDefault("index-threads", "1")),
+                Double.parseDouble(amap.getOrDefault("ram-buffer-mb",
+                        String.valueOf(IndexWriterConfig.DEFAULT_RAM_BUFFER_SIZE_MB))),
+                amap.getOrDefault("merge-scheduler", "concurrent"),
+                Boolean.parseBoolean(amap.getOrDefault("compound-files", "true")),
+                amap.containsKey("force-merge"),
+                amap.containsKey("reindex"),
+                amap.containsKey("incremental"),
+                Integer.parseInt(amap.getOrDefault("segments", "0")),
+                dense,
+                amap.containsKey("shared-analysis"),
+                amap.containsKey("compare-analysis"),
+                dense != null || FieldMode.fromArgs(amap).searchesContent());
+    }
+
+    IndexWriterConfig apply(IndexWriterConfig config) {
+        config.setRAMBufferSizeMB(ramBufferMb);
+        config.setMergeScheduler(mergeScheduler.equals("serial")
+                ? new SerialMergeScheduler() : new ConcurrentMergeScheduler());
+        config.setUseCompoundFile(compoundFiles);
+        config.getMergePolicy().setNoCFSRatio(compoundFiles ? 1.0 : 0.0);
+        return config;
+    }
+
+    // For --segments: flush every docsPerSegment documents and merge nothing
+    // while loading; returns the merge policy to restore for the final merge
+    MergePolicy applySegmentTarget(IndexWriterConfig config, int expectedDocs) {
+        MergePolicy merges = config.getMergePolicy();
+        config.setMaxBufferedDocs(Math.max(2, (expectedDocs + segments - 1) / segments));
+        config.setRAMBufferSizeMB(IndexWriterConfig.DISABLE_AUTO_FLUSH);
+        config.setMergePolicy(NoMergePolicy.INSTANCE);
+        return merges;
+    }
+
+    // Scheduler budget for one build: the writer's RAM buffer plus analysis headroom
+    int memoryKb() {
+        return 2 * (int) Math.ceil(ramBufferMb) * 1024;
+    }
+}
@@ -0,0 +1,77 @@
+package org.cranfield;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+// -----------------------------
+// HDR-style histogram over non-negative longs: nanosecond latencies, and
+// per-query work counts.
+// Values below 256 get one bucket each; above that every power of two is
+// split into 128 linear sub-buckets, so a recorded value is reported within
+// 1% of its true value over the whole long range, in a fixed 58 KB array.
+// Safe to record from several threads at once; the max is exact.
+// -----------------------------
+class LatencyHistogram {
+
+    private static final int SUB_BUCKET_BITS = 8;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int HALF = SUB_BUCKETS / 2;
+    private static final int BUCKETS = SUB_BUCKETS + (64 - SUB_BUCKET_BITS) * HALF;
+
+    // Heap held by one histogram: the bucket array and the counters
+    static final long FOOTPRINT_BYTES = (long) BUCKETS * Long.BYTES + 256;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+    private final AtomicLong max = new AtomicLong();
+
+    void record(long value) {
+        long v = Math.max(0, value);
+        counts.incrementAndGet(bucket(v));
+        count.increment();
+        sum.add(v);
+        max.accumulateAndGet(v, Math::max);
+    }
+
+    long count() {
+        return count.sum();
+    }
+
+    long max() {
+        return max.get();
+    }
+
+    double mean() {
+        long n = count.sum();
+        return n == 0 ? 0.0 : (double) sum.sum() / n;
+    }
+
+    // Value at the given percentile (0-100], as the top of its bucket and never above the max
+    long percentile(double p) {
+        long n = count.sum();
+        if (n == 0) return 0;
+        long target = Math.max(1, (long) Math.ceil(p / 100.0 * n));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts.get(i);
+            if (seen >= target) return Math.min(highestValue(i), max.get());
+        }
+        return max.get();
+    }
+
+    private static int bucket(long v) {
+        if (v < SUB_BUCKETS) return (int) v;
+        int shift = (63 - Long.numberOfLeadingZeros(v)) - SUB_BUCKET_BITS + 1;
+        int sub = (int) (v >>> shift); // in [HALF, SUB_BUCKETS)
+        return SUB_BUCKETS + (shift - 1) * HALF + (sub - HALF);
+    }
+
+    private static long highestValue(int bucket) {
+        if (bucket < SUB_BUCKETS) return bucket;
+        int shift = (bucket - SUB_BUCKETS) / HALF + 1;
+        long sub = (bucket - SUB_BUCKETS) % HALF + HALF;
+        return ((sub + 1) << shift) - 1;
+    }
+}
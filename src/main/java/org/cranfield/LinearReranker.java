@@ -0,0 +1,139 @@
+package org.cranfield;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.util.InPlaceMergeSorter;
+
+// -----------------------------
+// Linear model over RerankFeatures: score = bias + sum of weight * feature.
+// The model file holds one "name weight" pair per line, with "bias" and the
+// RerankFeatures names; blank lines and '#' comments are ignored and features
+// that are not listed weigh 0.
+//
+// Features are extracted query by query (timed per query), then the whole
+// batch is scored column by column, a tight loop over contiguous floats the
+// JIT can vectorize; that shared scoring time is split evenly over the
+// queries in the reported cost. Each ranking is then reordered in place:
+// the hits get their new scores and are sorted where they are, so scoring
+// allocates nothing per hit.
+// -----------------------------
+class LinearReranker implements Reranker {
+
+    private final Path file;
+    private final float bias;
+    private final float[] weights = new float[RerankFeatures.NAMES.length];
+    private final int depth;
+
+    private LinearReranker(Path file, Map<String, Float> model, int depth) {
+        this.file = file;
+        this.depth = depth;
+        this.bias = model.getOrDefault("bias", 0f);
+        List<String> names = Arrays.asList(RerankFeatures.NAMES);
+        for (Map.Entry<String, Float> e : model.entrySet()) {
+            if (e.getKey().equals("bias")) continue;
+            int f = names.indexOf(e.getKey());
+            if (f < 0) throw new IllegalArgumentException("unknown rerank feature in " + file + ": " + e.getKey());
+            weights[f] = e.getValue();
+        }
+    }
+
+    static LinearReranker load(Path file, int depth) throws IOException {
+        Map<String, Float> model = new LinkedHashMap<>();
+        int lineNo = 0;
+        for (String line : Files.readAllLines(file, StandardCharsets.UTF_8)) {
+            lineNo++;
+            int hash = line.indexOf('#');
+            if (hash >= 0) line = line.substring(0, hash);
+            line = line.trim();
+            if (line.isEmpty()) continue;
+            String[] parts = line.split("\\s+");
+            if (parts.length != 2) {
+                throw new IllegalArgumentException(file + ":" + lineNo + ": expected \"name weight\": " + line);
+            }
+            model.put(parts[0], Float.parseFloat(parts[1]));
+        }
+        return new LinearReranker(file, model, depth);
+    }
+
+    @Override
+    public String describe() {
+        StringBuilder sb = new StringBuilder("linear model ").append(file.getFileName());
+        sb.append(depth == Integer.MAX_VALUE ? ", all hits" : ", top " + depth);
+        return sb.toString();
+    }
+
+    @Override
+    public void rerank(IndexReader reader, Query[] queries, ScoreDoc[][] rankings,
+                       QueryMetrics metrics) throws IOException {
+        int[] firstRow = new int[rankings.length + 1];
+        for (int q = 0; q < rankings.length; q++) {
+            firstRow[q + 1] = firstRow[q] + Math.min(depth, rankings[q].length);
+        }
+        int rows = firstRow[rankings.length];
+
+        // 1. features, query by query
+        RerankFeatures features = new RerankFeatures(reader, rows);
+        long[] extractNanos = new long[rankings.length];
+        for (int q = 0; q < rankings.length; q++) {
+            long start = System.nanoTime();
+            features.extract(queries[q], rankings[q], firstRow[q + 1] - firstRow[q], firstRow[q]);
+            extractNanos[q] = System.nanoTime() - start;
+        }
+
+        // 2. the whole batch through the model, one feature column at a time
+        long start = System.nanoTime();
+        float[] scores = new float[rows];
+        Arrays.fill(scores, bias);
+        for (int f = 0; f < weights.length; f++) {
+            float w = weights[f];
+            if (w == 0f) continue;
+            float[] column = features.values[f];
+            for (int row = 0; row < rows; row++) scores[row] += w * column[row];
+        }
+
+        // 3. reorder each query's reranked prefix; the rest keeps its place below
+        HitSorter sorter = new HitSorter();
+        for (int q = 0; q < rankings.length; q++) {
+            ScoreDoc[] hits = rankings[q];
+            int n = firstRow[q + 1] - firstRow[q];
+            for (int i = 0; i < n; i++) hits[i].score = scores[firstRow[q] + i];
+            sorter.hits = hits;
+            sorter.sort(0, n);
+            // hits below the depth are scored one apart, below the last reranked one
+            float floor = n == 0 ? 0f : hits[n - 1].score;
+            for (int i = n; i < hits.length; i++) hits[i].score = floor - (i - n + 1);
+        }
+        long scoring = System.nanoTime() - start;
+
+        if (metrics != null) {
+            for (int q = 0; q < rankings.length; q++) {
+                metrics.time(QueryMetrics.Stage.RERANK, extractNanos[q] + scoring / Math.max(1, rankings.length));
+            }
+        }
+    }
+
+    // Score descending, then docid; merges within the array, no buffers
+    private static final class HitSorter extends InPlaceMergeSorter {
+        ScoreDoc[] hits;
+
+        @Override
+        protected int compare(int i, int j) {
+            ScoreDoc a = hits[i];
+            ScoreDoc b = hits[j];
+            return a.score != b.score ? Float.compare(b.score, a.score) : Integer.compare(a.doc, b.doc);
+        }
+
+        @Override
+        protected void swap(int i, int j) {
+            ScoreDoc t = hits[i];
+            hits[i] = hits[j];
+            hits[j] = t;
+        }
+    }
+}
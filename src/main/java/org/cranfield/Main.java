@@ -1,8 +1,10 @@
 package org.cranfield;
 
 import java.io.*;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.*;
 import java.util.*;
+import java.util.concurrent.*;
 import java.util.stream.Collectors;
 
 import org.apache.lucene.analysis.Analyzer;
@@ -14,6 +16,7 @@ import org.apache.lucene.store.*;
 import org.apache.lucene.search.*;
 import org.apache.lucene.search.similarities.*;
 import org.apache.lucene.queryparser.classic.*;
+import org.apache.lucene.util.Bits;
 import org.apache.lucene.util.Version;
 
 public class Main {
@@ -29,6 +32,12 @@ public class Main {
     // Top-K to retrieve per query
     private static final int TOP_K = 50;
 
+    // Fields every query is parsed against
+    static final String[] QUERY_FIELDS = {"title", "body"};
+
+    // trec_eval cutoffs for P, recall and ndcg_cut (trec_eval defaults plus TOP_K)
+    static final int[] EVAL_CUTOFFS = {5, 10, 15, 20, 30, 50, 100, 200, 500, 1000};
+
     // public static void main(String[] args) throws Exception {
     //     // Simple arg parsing
 
@@ -179,252 +188,1315 @@ public class Main {
 
     public static void main(String[] args) throws Exception {
 
-    // Define analyzers
+    Map<String, String> amap = parseArgs(args);
+
+    // Stored binary runs: --export-run FILE writes it out as TREC text, --eval-run FILE evaluates it
+    if (amap.containsKey("export-run")) {
+        Path runFile = Paths.get(amap.get("export-run"));
+        Path textFile = Paths.get(amap.getOrDefault("export-to", RunFormat.textFile(runFile.toString())));
+        RunFile.read(runFile).exportTrec(textFile);
+        System.out.println("Exported " + runFile + " to " + textFile);
+        return;
+    }
+    if (amap.containsKey("eval-run")) {
+        evaluateRun(Paths.get(amap.get("eval-run")), TrecEvaluator.load(Paths.get(QRELS_PATH), EVAL_CUTOFFS));
+        return;
+    }
+
+    // Define analyzers and similarities
+    Map<String, Analyzer> analyzers = createAnalyzers();
+    Map<String, Similarity> similarities = createSimilarities();
+
+    // Parse queries & qrels once
+    Map<String, String> queries = parseCranfieldQueries(QUERIES_PATH);
+    TrecEvaluator evaluator = TrecEvaluator.load(Paths.get(QRELS_PATH), EVAL_CUTOFFS);
+
+    // Fingerprint the collection once; every analyzer index is keyed by it
+    String collectionHash = sha256Hex(Paths.get(CRAN_PATH));
+    IndexingConfig indexing = IndexingConfig.fromArgs(amap);
+    IndexStore store = IndexStore.fromArgs(amap);
+
+    // How every combination searches: query threads, caches, retrieval and
+    // field mode, and the RM3 / dense / rerank stages after the first pass.
+    // Compiled queries and RM3 document models are shared by every similarity
+    SearchOptions options = SearchOptions.fromArgs(amap, similarities, TOP_K, indexing.dense);
+    // The query and slice pools are not daemon threads: they are shut down however the run ends.
+    // --serve hands them to the service, whose shutdown hook closes them
+    boolean serving = false;
+    try {
+        // Sweep scheduler: --combo-threads N combinations run at once, within
+        // --memory-budget-mb (defaults to half the max heap). Builds hold their
+        // writer buffers and combinations what estimateComboMemoryKb counts; with
+        // a collection the size of Cranfield that is about a megabyte, so the
+        // budget only binds once --combo-threads is in the hundreds or the
+        // budget is set well below the heap
+        int comboThreads = Integer.parseInt(amap.getOrDefault("combo-threads", "1"));
+        int memoryBudgetMb = Integer.parseInt(amap.getOrDefault("memory-budget-mb",
+                String.valueOf(Runtime.getRuntime().maxMemory() / (2 * 1024 * 1024))));
+        int comboMemoryKb = estimateComboMemoryKb(queryIds(queries).size(), options);
+
+        // --serve PORT: keep the indexes open and answer query batches over HTTP instead of sweeping.
+        // The service runs the first pass only (see SearchService)
+        if (amap.containsKey("serve")) {
+            if (options.fieldMode != FieldMode.MULTI) {
+                throw new IllegalArgumentException("--field-mode " + options.fieldMode.kind + " cannot be combined with --serve");
+            }
+            if (options.feedback != null) {
+                throw new IllegalArgumentException("--rm3 cannot be combined with --serve");
+            }
+            if (options.reranker != null) {
+                throw new IllegalArgumentException("--rerank cannot be combined with --serve");
+            }
+            if (options.resultCache != null) {
+                throw new IllegalArgumentException("--result-cache cannot be combined with --serve");
+            }
+            if (options.dense != null) {
+                throw new IllegalArgumentException("--dense cannot be combined with --serve");
+            }
+            if (options.slicing != null) {
+                throw new IllegalArgumentException("--slices cannot be combined with --serve");
+            }
+            serve(Integer.parseInt(amap.get("serve")), analyzers, similarities, collectionHash, indexing, store,
+                    options, Long.parseLong(amap.getOrDefault("refresh-ms", "1000")));
+            serving = true;
+            return;
+        }
+
+        // --grid-scoring: score every similarity from one postings pass per query
+        boolean gridScoring = amap.containsKey("grid-scoring");
+        if (gridScoring && options.feedback != null) {
+            throw new IllegalArgumentException("--rm3 cannot be combined with --grid-scoring");
+        }
+        if (gridScoring && options.fieldMode != FieldMode.MULTI) {
+            throw new IllegalArgumentException("--field-mode " + options.fieldMode.kind + " cannot be combined with --grid-scoring");
+        }
+        if (gridScoring && options.slicing != null) {
+            throw new IllegalArgumentException("--slices cannot be combined with --grid-scoring");
+        }
+        if (gridScoring && options.dense != null) {
+            throw new IllegalArgumentException("--dense cannot be combined with --grid-scoring");
+        }
+        if (gridScoring && options.resultCache != null) {
+            throw new IllegalArgumentException("--result-cache cannot be combined with --grid-scoring");
+        }
+        if (indexing.sharedAnalysis && !store.persistent()) {
+            throw new IllegalArgumentException("--shared-analysis cannot be combined with --store memory");
+        }
+
+        // --shared-analysis: indexes due for a full build are built together, ahead of the sweep
+        Set<String> sharedBuilt = indexing.sharedAnalysis
+                ? buildShared(Paths.get(CRAN_PATH), analyzers, collectionHash, indexing, store)
+                : Set.of();
+
+        // Each analyzer's index is built (or reused) first; its combinations are
+        // only queued once the reader over that index is open
+        List<CompletableFuture<String>> reports = new ArrayList<>();
+        System.out.printf("Sweep: %d combination thread(s), memory budget %d MB, %d KB per combination\n",
+                comboThreads, memoryBudgetMb, comboMemoryKb);
+        try (SweepScheduler scheduler = new SweepScheduler(comboThreads, memoryBudgetMb * 1024)) {
+            for (String analyzerName : analyzers.keySet()) {
+                Analyzer analyzer = analyzers.get(analyzerName);
+                String indexDir = INDEX_DIR + "_" + analyzerName;
+                ByteArrayOutputStream indexLog = new ByteArrayOutputStream();
+
+                // 1. Index documents (skipped when the index is already up to date)
+                CompletableFuture<OpenIndex> indexFuture = scheduler.submit(indexing.memoryKb(), () -> {
+                    Directory directory = store.open(Paths.get(indexDir));
+                    try (PrintStream out = new PrintStream(indexLog, true, StandardCharsets.UTF_8)) {
+                        if (sharedBuilt.contains(analyzerName)) {
+                            out.printf("Index %s was built in the shared analysis pass.\n", indexDir);
+                        } else {
+                            ensureIndex(Paths.get(CRAN_PATH), directory, indexDir, analyzerName, analyzer,
+                                    collectionHash, indexing, out);
+                        }
+                        store.warm(directory, out);
+                        return OpenIndex.open(directory);
+                    } catch (Exception e) {
+                        directory.close();
+                        throw e;
+                    }
+                });
+
+                // 2a. With --grid-scoring all similarities are searched together; the
+                // combinations below then only write and evaluate their rankings
+                CompletableFuture<GridRun> gridFuture = gridScoring
+                        ? scheduler.submitAfter(indexFuture, comboMemoryKb * similarities.size(),
+                                index -> searchGrid(index, analyzer, similarities, queries, options.queryCache))
+                        : null;
+
+                List<CompletableFuture<String>> analyzerReports = new ArrayList<>();
+                boolean first = true;
+                for (String simName : similarities.keySet()) {
+                    Similarity similarity = similarities.get(simName);
+                    // the index log is printed once, ahead of the analyzer's first combination
+                    ByteArrayOutputStream log = first ? indexLog : null;
+                    first = false;
+
+                    String comboTag = analyzerName + "_" + simName;
+                    String resultFile = options.runFormat.runFile("results_" + comboTag);
+                    String metricsFile = "metrics_" + comboTag;
+                    String runTag = comboTag;
+
+                    // 2. Search and evaluate
+                    if (gridFuture == null) {
+                        analyzerReports.add(scheduler.submitAfter(indexFuture, comboMemoryKb, index ->
+                                comboReport(log, analyzerName, simName, out ->
+                                        evaluateCombination(index.reader(), index.docnos(), analyzer, similarity, queries,
+                                                evaluator, resultFile, runTag, metricsFile, options, out))));
+                    } else {
+                        analyzerReports.add(scheduler.submitAfter(gridFuture, comboMemoryKb, grid ->
+                                comboReport(log, analyzerName, simName, out -> {
+                                    ScoreDoc[][] rankings = grid.rankings().get(simName);
+                                    QueryMetrics metrics = grid.metrics().get(simName);
+                                    if (options.reranker != null) {
+                                        rankings = rerankQueries(grid.index().reader(), analyzer, queries, grid.qids(),
+                                                grid.index().docnos(), evaluator, rankings, options.reranker,
+                                                options.queryCache, metrics, out);
+                                    }
+                                    reportCombination(grid.index().docnos(), grid.qids(), rankings,
+                                            evaluator, resultFile, runTag, metricsFile, metrics, options.runFormat, out);
+                                })));
+                    }
+                }
+
+                // the reader is shared by this analyzer's combinations; close it after the last one
+                CompletableFuture.allOf(analyzerReports.toArray(new CompletableFuture<?>[0]))
+                        .whenComplete((ignored, error) -> indexFuture.thenAccept(OpenIndex::closeQuietly));
+                reports.addAll(analyzerReports);
+            }
+
+            // Print reports in sweep order, regardless of completion order
+            for (CompletableFuture<String> report : reports) {
+                try {
+                    System.out.print(report.join());
+                } catch (CompletionException e) {
+                    Throwable cause = e.getCause();
+                    if (cause instanceof Exception) throw (Exception) cause;
+                    throw e;
+                }
+            }
+        }
+
+        if (options.queryCache != null) System.out.println("\nQuery cache: " + options.queryCache.stats());
+        if (options.resultCache != null) System.out.println("Result cache: " + options.resultCache.stats());
+        if (options.feedback != null) System.out.println("RM3 feedback: " + options.feedback.stats());
+
+        System.out.println("\n✅ All combinations completed. Check generated results_*"
+                + (options.runFormat.binary ? ".run" : ".txt") + " files.");
+    } finally {
+        if (!serving) options.close();
+    }
+}
+
+// --- Analyzers and similarities swept by main ---
+static Map<String, Analyzer> createAnalyzers() {
     Map<String, Analyzer> analyzers = new LinkedHashMap<>();
     analyzers.put("standard", new StandardAnalyzer());
     analyzers.put("english", new EnglishAnalyzer());
     analyzers.put("whitespace", new org.apache.lucene.analysis.core.WhitespaceAnalyzer());
+    return analyzers;
+}
 
-    // Define similarities
+static Map<String, Similarity> createSimilarities() {
     Map<String, Similarity> similarities = new LinkedHashMap<>();
     // similarities.put("bm25", new BM25Similarity());
 
     // BM25 tuning grid
-float[] k1_values = {1.2f, 1.5f, 2.0f};
-float[] b_values = {0.6f, 0.75f, 0.9f};
+    float[] k1_values = {1.2f, 1.5f, 2.0f};
+    float[] b_values = {0.6f, 0.75f, 0.9f};
 
-for (float k1 : k1_values) {
-    for (float b : b_values) {
-        String label = String.format("bm25_k1%.1f_b%.2f", k1, b);
-        similarities.put(label, new BM25Similarity(k1, b));
+    for (float k1 : k1_values) {
+        for (float b : b_values) {
+            String label = String.format("bm25_k1%.1f_b%.2f", k1, b);
+            similarities.put(label, new BM25Similarity(k1, b));
+        }
     }
-}
 
     similarities.put("tfidf", new ClassicSimilarity());
     similarities.put("dirichlet", new LMDirichletSimilarity());
+    return similarities;
+}
 
-    // Parse documents once
-    List<DocStruct> docs = parseCranfieldDocument(CRAN_PATH);
-    System.out.printf("Parsed %d Cranfield documents.\n", docs.size());
+// --- One combination's console report, captured so the sweep can print in order ---
+private interface ReportBody {
+    void write(PrintStream out) throws Exception;
+}
 
-    // Parse queries & qrels once
-    Map<String, String> queries = parseCranfieldQueries(QUERIES_PATH);
-    Map<String, Set<String>> qrels = parseQrels(QRELS_PATH);
+private static String comboReport(ByteArrayOutputStream indexLog, String analyzerName, String simName,
+                                  ReportBody body) throws Exception {
+    ByteArrayOutputStream report = new ByteArrayOutputStream();
+    try (PrintStream out = new PrintStream(report, true, StandardCharsets.UTF_8)) {
+        if (indexLog != null) out.print(indexLog.toString(StandardCharsets.UTF_8));
+        out.println("\n==============================");
+        out.printf("Running combination: %s + %s\n", analyzerName, simName);
+        out.println("==============================");
+        body.write(out);
+    }
+    return report.toString(StandardCharsets.UTF_8);
+}
 
-    // Loop over each analyzer-similarity combination
-    for (String analyzerName : analyzers.keySet()) {
-        for (String simName : similarities.keySet()) {
+// --- Evaluate one analyzer + similarity combo ---
+private static void evaluateCombination(IndexReader reader, DocnoLookup docnos,
+                                        Analyzer analyzer, Similarity sim,
+                                        Map<String, String> queries,
+                                        TrecEvaluator evaluator,
+                                        String resultFile, String runTag, String metricsFile,
+                                        SearchOptions options, PrintStream out) throws Exception {
+
+    // The reader is owned by the caller and shared by every similarity
+    IndexSearcher searcher = options.slicing == null
+            ? new IndexSearcher(reader) : options.slicing.newSearcher(reader);
+    searcher.setSimilarity(sim);
+
+    List<String> qids = queryIds(queries);
+
+    if (!options.fieldMode.supports(sim)) {
+        out.printf("Field mode %s needs a BM25 similarity; using the multi-field expansion\n",
+                options.fieldMode.kind);
+        options = options.withFieldMode(FieldMode.MULTI);
+    }
+    FieldMode mode = options.fieldMode;
+    RetrievalMode retrieval = options.retrieval;
+    QueryCache queryCache = options.queryCache;
+
+    // Rankings land in query order, whatever order the searches finish in
+    QueryMetrics metrics = new QueryMetrics();
+    ScoreDoc[][] rankings = searchQueries(searcher, analyzer, queries, qids, options, metrics);
+
+    if (mode != FieldMode.MULTI) {
+        compareFieldModes(searcher, analyzer, queries, qids, docnos, evaluator, mode, queryCache, out);
+    }
+
+    if (retrieval.compareExhaustive()) {
+        compareRetrieval(searcher, analyzer, queries, qids, docnos, evaluator, retrieval, queryCache, out);
+    }
+
+    if (options.slicing != null) {
+        compareSlices(reader, sim, analyzer, queries, qids, mode, options.slicing, retrieval, queryCache, out);
+    }
 
-            Analyzer analyzer = analyzers.get(analyzerName);
-            Similarity similarity = similarities.get(simName);
+    // With RM3 the expanded second pass is the combination's run
+    if (options.feedback != null) {
+        rankings = expandQueries(searcher, analyzer, queries, qids, docnos, evaluator, rankings, options.feedback,
+                queryCache, retrieval, metrics, out);
+    }
 
-            String comboTag = analyzerName + "_" + simName;
-            String indexDir = INDEX_DIR + "_" + comboTag;
-            String resultFile = "results_" + comboTag + ".txt";
-            String runTag = comboTag;
+    // With --dense the lexical run fused with the kNN hits is the combination's run
+    if (options.dense != null) {
+        rankings = fuseDense(searcher, analyzer, queries, qids, docnos, evaluator, rankings, options.dense,
+                metrics, out);
+    }
 
-            System.out.println("\n==============================");
-            System.out.printf("Running combination: %s + %s\n", analyzerName, simName);
-            System.out.println("==============================");
+    if (options.reranker != null) {
+        rankings = rerankQueries(reader, analyzer, queries, qids, docnos, evaluator, rankings, options.reranker,
+                queryCache, metrics, out);
+    }
 
-            // 1. Index documents
-            indexDocuments(docs, indexDir, analyzer);
+    reportCombination(docnos, qids, rankings, evaluator, resultFile, runTag, metricsFile, metrics,
+            options.runFormat, out);
+}
 
-            // 2. Search and evaluate
-            evaluateCombination(indexDir, analyzer, similarity, queries, qrels, resultFile, runTag);
+// --- Approximate vs exhaustive retrieval: search latency and effectiveness delta ---
+// Both modes run query by query, alternating which goes first, so neither
+// gets a warmer JVM or page cache than the other.
+private static void compareRetrieval(IndexSearcher searcher, Analyzer analyzer, Map<String, String> queries,
+                                     List<String> qids, DocnoLookup docnos, TrecEvaluator evaluator,
+                                     RetrievalMode retrieval, QueryCache cache, PrintStream out) throws Exception {
+    MultiFieldQueryParser parser = new MultiFieldQueryParser(QUERY_FIELDS, analyzer);
+    ScoreDoc[][] fast = new ScoreDoc[qids.size()][];
+    ScoreDoc[][] exact = new ScoreDoc[qids.size()][];
+    LatencyHistogram fastSearch = new LatencyHistogram();
+    LatencyHistogram exactSearch = new LatencyHistogram();
+    long fastHits = 0, exactHits = 0;
+    for (int i = 0; i < qids.size(); i++) {
+        String qtext = queries.get(qids.get(i));
+        Query query = cache == null
+                ? parser.parse(QueryParser.escape(qtext))
+                : cache.get(analyzer, QUERY_FIELDS, qtext, () -> parser.parse(QueryParser.escape(qtext)));
+        Query pruned = retrieval.prune(searcher.getIndexReader(), query);
+        for (int pass = 0; pass < 2; pass++) {
+            boolean runFast = (pass + i) % 2 == 0;
+            long start = System.nanoTime();
+            TopDocs top = runFast ? retrieval.search(searcher, pruned, TOP_K)
+                    : RetrievalMode.EXHAUSTIVE.search(searcher, query, TOP_K);
+            long nanos = System.nanoTime() - start;
+            if (runFast) {
+                fast[i] = top.scoreDocs;
+                fastSearch.record(nanos);
+                fastHits += top.totalHits.value();
+            } else {
+                exact[i] = top.scoreDocs;
+                exactSearch.record(nanos);
+                exactHits += top.totalHits.value();
+            }
         }
     }
 
-    System.out.println("\n✅ All combinations completed. Check generated results_*.txt files.");
+    TrecEvaluator.Summary fastSummary = summarize(docnos, qids, fast, evaluator);
+    TrecEvaluator.Summary exactSummary = summarize(docnos, qids, exact, evaluator);
+    int changed = 0;
+    for (int i = 0; i < qids.size(); i++) {
+        if (!sameRanking(fast[i], exact[i])) changed++;
+    }
+    out.printf("Retrieval (%s) vs exhaustive:\n", retrieval.describe());
+    out.printf("  search mean %.1f us vs %.1f us (speedup %.2fx) | p95 %.1f us vs %.1f us | hits counted %.0f vs %.0f\n",
+            fastSearch.mean() / 1000.0, exactSearch.mean() / 1000.0,
+            exactSearch.mean() / Math.max(1.0, fastSearch.mean()),
+            fastSearch.percentile(95) / 1000.0, exactSearch.percentile(95) / 1000.0,
+            (double) fastHits / qids.size(), (double) exactHits / qids.size());
+    out.printf("  MAP %.4f vs %.4f (delta %+.4f) | Recall@%d %.4f vs %.4f (delta %+.4f) | rankings changed: %d/%d\n",
+            fastSummary.map(), exactSummary.map(), fastSummary.map() - exactSummary.map(),
+            TOP_K, fastSummary.recall(TOP_K), exactSummary.recall(TOP_K),
+            fastSummary.recall(TOP_K) - exactSummary.recall(TOP_K), changed, qids.size());
 }
 
-private static void runTrecEval(String qrelsPath, String resultFile, String runTag) {
-    try {
-        // Change this to the full path to your trec_eval executable
-        String trecEvalCmd = "/opt/trec_eval/trec_eval";;  
+// --- RM3 second pass: each query expanded from its feedback model and searched again ---
+// Reports the added latency (feedback model plus second search, per query)
+// against the first pass, next to the MAP/recall change.
+private static ScoreDoc[][] expandQueries(IndexSearcher searcher, Analyzer analyzer, Map<String, String> queries,
+                                          List<String> qids, DocnoLookup docnos, TrecEvaluator evaluator,
+                                          ScoreDoc[][] firstPass, Rm3Feedback feedback, QueryCache cache,
+                                          RetrievalMode retrieval, QueryMetrics metrics,
+                                          PrintStream out) throws Exception {
+    MultiFieldQueryParser parser = new MultiFieldQueryParser(QUERY_FIELDS, analyzer);
+    ScoreDoc[][] expanded = new ScoreDoc[qids.size()][];
+    int reused = 0;
+    for (int i = 0; i < qids.size(); i++) {
+        String qtext = queries.get(qids.get(i));
+        long start = System.nanoTime();
+        Query query = cache == null
+                ? parser.parse(QueryParser.escape(qtext))
+                : cache.get(analyzer, QUERY_FIELDS, qtext, () -> parser.parse(QueryParser.escape(qtext)));
+        Rm3Feedback.Expansion expansion = feedback.expand(searcher.getIndexReader(), query, firstPass[i]);
+        long modelled = System.nanoTime();
+        expanded[i] = retrieval.search(searcher, expansion.query(), TOP_K).scoreDocs;
+        long searched = System.nanoTime();
+        metrics.time(QueryMetrics.Stage.FEEDBACK, modelled - start);
+        metrics.time(QueryMetrics.Stage.EXPANDED, searched - modelled);
+        if (expansion.cached()) reused++;
+    }
 
-        ProcessBuilder pb = new ProcessBuilder(trecEvalCmd, qrelsPath, resultFile);
-        pb.redirectErrorStream(true); // combine stdout and stderr
-        Process process = pb.start();
+    TrecEvaluator.Summary first = summarize(docnos, qids, firstPass, evaluator);
+    TrecEvaluator.Summary second = summarize(docnos, qids, expanded, evaluator);
+    double firstCost = metrics.mean(QueryMetrics.Stage.PARSE) + metrics.mean(QueryMetrics.Stage.SEARCH);
+    double feedbackCost = metrics.mean(QueryMetrics.Stage.FEEDBACK);
+    double secondCost = metrics.mean(QueryMetrics.Stage.EXPANDED);
+    boolean searched = metrics.count(QueryMetrics.Stage.SEARCH) > 0;
+    out.printf("RM3 (%s):\n", feedback.describe());
+    out.printf("  mean per query: first pass %s + feedback %.1f us (models reused %d/%d) + second pass %.1f us (overhead %s)%s\n",
+            searched ? String.format("%.1f us", firstCost / 1000.0) : "n/a", feedbackCost / 1000.0, reused,
+            qids.size(), secondCost / 1000.0,
+            searched ? String.format("%+.0f%%", 100.0 * (feedbackCost + secondCost) / Math.max(1.0, firstCost)) : "n/a",
+            resultCacheNote(metrics));
+    out.printf("  MAP %.4f -> %.4f (delta %+.4f) | Recall@%d %.4f -> %.4f (delta %+.4f)\n",
+            first.map(), second.map(), second.map() - first.map(),
+            TOP_K, first.recall(TOP_K), second.recall(TOP_K), second.recall(TOP_K) - first.recall(TOP_K));
+    return expanded;
+}
 
-        // Read and print trec_eval output
-        BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream()));
-        System.out.println("\n--- TREC Eval Output for " + resultFile + " (" + runTag + ") ---");
-        
-        String line;
-        System.out.println("\n--- TREC Eval Output for " + resultFile + " ---");
-        while ((line = reader.readLine()) != null) {
-            System.out.println(line);
+// --- Dense retrieval: kNN over the document vectors, fused with the lexical hits ---
+// Reports the per-query cost of each step against the lexical search, the
+// MAP of the lexical, dense-only and fused rankings, and the vector footprint.
+private static ScoreDoc[][] fuseDense(IndexSearcher searcher, Analyzer analyzer, Map<String, String> queries,
+                                      List<String> qids, DocnoLookup docnos, TrecEvaluator evaluator,
+                                      ScoreDoc[][] lexical, DenseRetrieval dense, QueryMetrics metrics,
+                                      PrintStream out) throws Exception {
+    IndexReader reader = searcher.getIndexReader();
+    Embedder embedder = dense.queryEmbedder(reader, analyzer);
+    ScoreDoc[][] denseHits = new ScoreDoc[qids.size()][];
+    ScoreDoc[][] fused = new ScoreDoc[qids.size()][];
+    LatencyHistogram embedding = new LatencyHistogram();
+    LatencyHistogram knn = new LatencyHistogram();
+    LatencyHistogram fusion = new LatencyHistogram();
+    int empty = 0;
+    for (int i = 0; i < qids.size(); i++) {
+        long start = System.nanoTime();
+        float[] vector = embedder.embed(queries.get(qids.get(i)));
+        long embedded = System.nanoTime();
+        if (vector == null) {
+            denseHits[i] = new ScoreDoc[0];
+            empty++;
+        } else {
+            denseHits[i] = searcher.search(new KnnFloatVectorQuery(DenseRetrieval.FIELD, vector, dense.k),
+                    dense.k).scoreDocs;
+        }
+        long searched = System.nanoTime();
+        fused[i] = dense.fuse(lexical[i], denseHits[i], TOP_K);
+        long done = System.nanoTime();
+        embedding.record(embedded - start);
+        knn.record(searched - embedded);
+        fusion.record(done - searched);
+        metrics.time(QueryMetrics.Stage.DENSE, done - start);
+    }
+
+    TrecEvaluator.Summary lexicalSummary = summarize(docnos, qids, lexical, evaluator);
+    TrecEvaluator.Summary denseSummary = summarize(docnos, qids, denseHits, evaluator);
+    TrecEvaluator.Summary fusedSummary = summarize(docnos, qids, fused, evaluator);
+    DenseRetrieval.Footprint footprint = DenseRetrieval.footprint(reader);
+    out.printf("Dense (%s):\n", dense.describe());
+    out.printf("  per query: embed %.1f us + kNN %.1f us (p95 %.1f us) + fusion %.1f us | lexical search %s%s\n",
+            embedding.mean() / 1000.0, knn.mean() / 1000.0, knn.percentile(95) / 1000.0, fusion.mean() / 1000.0,
+            firstPassSearch(metrics), empty == 0 ? "" : " (" + empty + " queries without known terms)");
+    out.printf("  MAP lexical %.4f | dense %.4f | fused %.4f (delta %+.4f) | Recall@%d %.4f | %.4f | %.4f\n",
+            lexicalSummary.map(), denseSummary.map(), fusedSummary.map(), fusedSummary.map() - lexicalSummary.map(),
+            TOP_K, lexicalSummary.recall(TOP_K), denseSummary.recall(TOP_K), fusedSummary.recall(TOP_K));
+    out.printf("  vectors on disk: graph %.1f KB, float32 %.1f KB, quantized %.1f KB; searched %.1f KB | heap %.1f KB\n",
+            footprint.graphBytes() / 1024.0, footprint.rawBytes() / 1024.0, footprint.quantizedBytes() / 1024.0,
+            footprint.searchedBytes() / 1024.0, footprint.heapBytes() / 1024.0);
+    return fused;
+}
+
+// --- Second stage: rerank every query's hits as one batch ---
+// Reports the rerank cost per query against the first stage, next to the
+// MAP/precision change.
+private static ScoreDoc[][] rerankQueries(IndexReader reader, Analyzer analyzer, Map<String, String> queries,
+                                          List<String> qids, DocnoLookup docnos, TrecEvaluator evaluator,
+                                          ScoreDoc[][] rankings, Reranker reranker, QueryCache cache,
+                                          QueryMetrics metrics, PrintStream out) throws Exception {
+    MultiFieldQueryParser parser = new MultiFieldQueryParser(QUERY_FIELDS, analyzer);
+    Query[] parsed = new Query[qids.size()];
+    for (int i = 0; i < qids.size(); i++) {
+        String qtext = queries.get(qids.get(i));
+        parsed[i] = cache == null
+                ? parser.parse(QueryParser.escape(qtext))
+                : cache.get(analyzer, QUERY_FIELDS, qtext, () -> parser.parse(QueryParser.escape(qtext)));
+    }
+    // the reranker reorders the rankings in place, so the first stage is evaluated first
+    TrecEvaluator.Summary before = summarize(docnos, qids, rankings, evaluator);
+    reranker.rerank(reader, parsed, rankings, metrics);
+    TrecEvaluator.Summary after = summarize(docnos, qids, rankings, evaluator);
+    out.printf("Rerank (%s):\n", reranker.describe());
+    out.printf("  cost per query: mean %.1f us, p95 %.1f us, max %.1f us (first stage search mean %s)\n",
+            metrics.mean(QueryMetrics.Stage.RERANK) / 1000.0,
+            metrics.percentile(QueryMetrics.Stage.RERANK, 95) / 1000.0,
+            metrics.percentile(QueryMetrics.Stage.RERANK, 100) / 1000.0,
+            firstPassSearch(metrics));
+    out.printf("  MAP %.4f -> %.4f (delta %+.4f) | P@10 %.4f -> %.4f (delta %+.4f)\n",
+            before.map(), after.map(), after.map() - before.map(),
+            before.precision(10), after.precision(10), after.precision(10) - before.precision(10));
+    return rankings;
+}
+
+// Mean first-pass search over the searches that ran, with the cache note
+private static String firstPassSearch(QueryMetrics metrics) {
+    String mean = metrics.count(QueryMetrics.Stage.SEARCH) == 0 ? "n/a"
+            : String.format("%.1f us", metrics.mean(QueryMetrics.Stage.SEARCH) / 1000.0);
+    return mean + resultCacheNote(metrics);
+}
+
+// First-stage search figures cover executed searches only; says how many
+// first passes --result-cache answered instead
+private static String resultCacheNote(QueryMetrics metrics) {
+    long cached = metrics.count(QueryMetrics.Stage.CACHED);
+    if (cached == 0) return "";
+    return String.format(" [%d of %d first passes from the result cache]", cached,
+            cached + metrics.count(QueryMetrics.Stage.SEARCH));
+}
+
+// --- Field mode vs the multi-field expansion: latency, clauses and postings ---
+// Clauses are the leaf queries scored per query; postings the entries behind
+// their terms (sum of docFreq), as in QueryMetrics. Both run query by query,
+// alternating which goes first.
+private static void compareFieldModes(IndexSearcher searcher, Analyzer analyzer, Map<String, String> queries,
+                                      List<String> qids, DocnoLookup docnos, TrecEvaluator evaluator,
+                                      FieldMode mode, QueryCache cache, PrintStream out) throws Exception {
+    QueryParser modeParser = mode.newParser(analyzer);
+    QueryParser multiParser = FieldMode.MULTI.newParser(analyzer);
+    IndexReader reader = searcher.getIndexReader();
+    ScoreDoc[][] modeHits = new ScoreDoc[qids.size()][];
+    ScoreDoc[][] multiHits = new ScoreDoc[qids.size()][];
+    LatencyHistogram modeSearch = new LatencyHistogram();
+    LatencyHistogram multiSearch = new LatencyHistogram();
+    long[] modeTraffic = new long[2], multiTraffic = new long[2];
+    for (int i = 0; i < qids.size(); i++) {
+        String qtext = queries.get(qids.get(i));
+        Query modeQuery = parseQuery(modeParser, mode.cacheFields(), qtext, cache);
+        Query multiQuery = parseQuery(multiParser, QUERY_FIELDS, qtext, cache);
+        addTraffic(reader, modeQuery, modeTraffic);
+        addTraffic(reader, multiQuery, multiTraffic);
+        for (int pass = 0; pass < 2; pass++) {
+            boolean runMode = (pass + i) % 2 == 0;
+            long start = System.nanoTime();
+            TopDocs top = searcher.search(runMode ? modeQuery : multiQuery, TOP_K);
+            long nanos = System.nanoTime() - start;
+            if (runMode) {
+                modeHits[i] = top.scoreDocs;
+                modeSearch.record(nanos);
+            } else {
+                multiHits[i] = top.scoreDocs;
+                multiSearch.record(nanos);
+            }
+        }
+    }
+
+    TrecEvaluator.Summary modeSummary = summarize(docnos, qids, modeHits, evaluator);
+    TrecEvaluator.Summary multiSummary = summarize(docnos, qids, multiHits, evaluator);
+    double n = qids.size();
+    out.printf("Fields (%s) vs multi-field expansion:\n", mode.describe());
+    out.printf("  search mean %.1f us vs %.1f us (speedup %.2fx) | p95 %.1f us vs %.1f us\n",
+            modeSearch.mean() / 1000.0, multiSearch.mean() / 1000.0,
+            multiSearch.mean() / Math.max(1.0, modeSearch.mean()),
+            modeSearch.percentile(95) / 1000.0, multiSearch.percentile(95) / 1000.0);
+    out.printf("  per query: clauses %.1f vs %.1f | postings %.1f vs %.1f\n",
+            modeTraffic[0] / n, multiTraffic[0] / n, modeTraffic[1] / n, multiTraffic[1] / n);
+    out.printf("  MAP %.4f vs %.4f (delta %+.4f) | Recall@%d %.4f vs %.4f (delta %+.4f)\n",
+            modeSummary.map(), multiSummary.map(), modeSummary.map() - multiSummary.map(),
+            TOP_K, modeSummary.recall(TOP_K), multiSummary.recall(TOP_K),
+            modeSummary.recall(TOP_K) - multiSummary.recall(TOP_K));
+}
+
+// --- Search latency by slice count: 1, 2, 4 ... slices over the same queries ---
+// Every slice count runs each query in turn, starting from a different one per
+// query, so no count always gets the warmest caches. Scores are computed per
+// segment with index-wide statistics, so any slicing must reproduce the
+// 1-slice rankings exactly.
+private static void compareSlices(IndexReader reader, Similarity sim, Analyzer analyzer, Map<String, String> queries,
+                                  List<String> qids, FieldMode mode, SearchSlicing slicing,
+                                  RetrievalMode retrieval, QueryCache cache, PrintStream out) throws Exception {
+    List<Integer> steps = slicing.scalingSteps(reader);
+    IndexSearcher[] searchers = new IndexSearcher[steps.size()];
+    LatencyHistogram[] latency = new LatencyHistogram[steps.size()];
+    int[] mismatches = new int[steps.size()];
+    for (int s = 0; s < steps.size(); s++) {
+        searchers[s] = slicing.newSearcher(reader, steps.get(s));
+        searchers[s].setSimilarity(sim);
+        latency[s] = new LatencyHistogram();
+    }
+    QueryParser parser = mode.newParser(analyzer);
+    ScoreDoc[][] hits = new ScoreDoc[steps.size()][];
+    for (int i = 0; i < qids.size(); i++) {
+        Query query = retrieval.prune(reader,
+                parseQuery(parser, mode.cacheFields(), queries.get(qids.get(i)), cache));
+        for (int pass = 0; pass < steps.size(); pass++) {
+            int s = (pass + i) % steps.size();
+            long start = System.nanoTime();
+            hits[s] = retrieval.search(searchers[s], query, TOP_K).scoreDocs;
+            latency[s].record(System.nanoTime() - start);
         }
+        for (int s = 1; s < steps.size(); s++) {
+            if (!sameRanking(hits[0], hits[s])) mismatches[s]++;
+        }
+    }
 
-        int exitCode = process.waitFor();
-        if (exitCode != 0) {
-            System.err.println("trec_eval exited with code: " + exitCode);
+    out.printf("Slices (%d segments, %s):\n", reader.leaves().size(), slicing.describe());
+    for (int s = 0; s < steps.size(); s++) {
+        out.printf("  %2d slice(s): search mean %.1f us | p50 %.1f us | p95 %.1f us | p99 %.1f us"
+                        + " | speedup %.2fx | rankings %s\n",
+                searchers[s].getSlices().length, latency[s].mean() / 1000.0,
+                latency[s].percentile(50) / 1000.0, latency[s].percentile(95) / 1000.0,
+                latency[s].percentile(99) / 1000.0, latency[0].mean() / Math.max(1.0, latency[s].mean()),
+                s == 0 ? "reference" : mismatches[s] == 0 ? "identical" : mismatches[s] + " queries differ");
+    }
+}
+
+// traffic[0] += leaf queries, traffic[1] += docFreq of their terms
+private static void addTraffic(IndexReader reader, Query query, long[] traffic) throws IOException {
+    List<Term> terms = new ArrayList<>();
+    query.visit(new QueryVisitor() {
+        @Override
+        public void consumeTerms(Query q, Term... leafTerms) {
+            traffic[0]++;
+            terms.addAll(Arrays.asList(leafTerms));
         }
-        System.out.println("--- End of TREC Eval ---\n");
+    });
+    for (Term term : terms) traffic[1] += reader.docFreq(term);
+}
 
-    } catch (Exception e) {
-        e.printStackTrace();
+private static boolean sameRanking(ScoreDoc[] a, ScoreDoc[] b) {
+    if (a.length != b.length) return false;
+    for (int i = 0; i < a.length; i++) {
+        if (a[i].doc != b[i].doc || a[i].score != b[i].score) return false;
     }
+    return true;
 }
 
+// Evaluation only, without writing a run file
+private static TrecEvaluator.Summary summarize(DocnoLookup docnos, List<String> qids, ScoreDoc[][] rankings,
+                                               TrecEvaluator evaluator) {
+    TrecEvaluator.Summary summary = new TrecEvaluator.Summary(evaluator.cutoffs());
+    for (int i = 0; i < qids.size(); i++) {
+        ScoreDoc[] hits = rankings[i];
+        String[] hitDocnos = new String[hits.length];
+        float[] hitScores = new float[hits.length];
+        for (int rank = 0; rank < hits.length; rank++) {
+            hitDocnos[rank] = docnos.docno(hits[rank].doc);
+            hitScores[rank] = TrecEvaluator.trecScore(hits[rank].score);
+        }
+        TrecEvaluator.QueryMeasures measures = evaluator.evaluate(qids.get(i), hitDocnos, hitScores, hits.length);
+        if (measures != null) summary.add(measures);
+    }
+    return summary;
+}
 
-// --- Evaluate one analyzer + similarity combo ---
-private static void evaluateCombination(String indexDir, Analyzer analyzer, Similarity sim,
-                                        Map<String, String> queries,
-                                        Map<String, Set<String>> qrels,
-                                        String resultFile, String runTag) throws Exception {
+// --- Write one combination's run file, evaluate it and report ---
+private static void reportCombination(DocnoLookup docnos, List<String> qids, ScoreDoc[][] rankings,
+                                      TrecEvaluator evaluator, String resultFile, String runTag,
+                                      String metricsFile, QueryMetrics metrics, RunFormat runFormat,
+                                      PrintStream out) throws Exception {
+    // Binary runs collect into columns and are written once at the end
+    RunFile.Builder run = runFormat.binary ? new RunFile.Builder(runTag) : null;
+    BufferedWriter resultsWriter = run == null ? new BufferedWriter(new FileWriter(resultFile)) : null;
+    StringBuilder line = new StringBuilder(64);
+
+    TrecEvaluator.Summary summary = new TrecEvaluator.Summary(evaluator.cutoffs());
+
+    for (int i = 0; i < qids.size(); i++) {
+        String qid = qids.get(i);
+        ScoreDoc[] hits = rankings[i];
+
+        long start = System.nanoTime();
+        String[] hitDocnos = new String[hits.length];
+        float[] hitScores = new float[hits.length];
+        for (int rank = 0; rank < hits.length; rank++) {
+            hitDocnos[rank] = docnos.docno(hits[rank].doc);
+            hitScores[rank] = TrecEvaluator.trecScore(hits[rank].score);
+        }
+        long resolved = System.nanoTime();
 
-    Directory dir = FSDirectory.open(Paths.get(indexDir));
-    DirectoryReader reader = DirectoryReader.open(dir);
-    IndexSearcher searcher = new IndexSearcher(reader);
-    searcher.setSimilarity(sim);
+        // Write TREC-style output
+        if (run != null) {
+            run.add(qid, hitDocnos, hits);
+        } else {
+            for (int rank = 0; rank < hits.length; rank++) {
+                line.setLength(0);
+                appendTrecLine(line, qid, hitDocnos[rank], rank + 1, hits[rank].score, runTag);
+                resultsWriter.append(line);
+            }
+        }
+        metrics.time(QueryMetrics.Stage.RESOLVE, resolved - start);
+        metrics.time(QueryMetrics.Stage.WRITE, System.nanoTime() - resolved);
 
-    MultiFieldQueryParser parser = new MultiFieldQueryParser(new String[]{"title", "body"}, analyzer);
-    BufferedWriter resultsWriter = new BufferedWriter(new FileWriter(resultFile));
+        // Evaluate in-process, exactly as trec_eval would score the file just written
+        TrecEvaluator.QueryMeasures measures = evaluator.evaluate(qid, hitDocnos, hitScores, hits.length);
+        if (measures != null) summary.add(measures);
+    }
 
-    double sumAvgPrecision = 0.0;
-    double sumRecallAt50 = 0.0;
-    int queryCount = 0;
+    if (run != null) {
+        long start = System.nanoTime();
+        run.write(Paths.get(resultFile), runFormat.compress);
+        long written = System.nanoTime();
+        out.printf("Run file: %s (%d bytes, written in %.1f ms)\n",
+                resultFile, Files.size(Paths.get(resultFile)), (written - start) / 1e6);
+        if (runFormat.trecExport) {
+            String textFile = RunFormat.textFile(resultFile);
+            RunFile.read(Paths.get(resultFile)).exportTrec(Paths.get(textFile));
+            out.printf("TREC export: %s in %.1f ms\n", textFile, (System.nanoTime() - written) / 1e6);
+        }
+    } else {
+        resultsWriter.close();
+    }
+
+    out.printf("Combo %-20s | MAP = %.4f | Recall@50 = %.4f | Results: %s\n",
+            runTag, summary.map(), summary.recall(TOP_K), resultFile);
 
+    // Latency alongside effectiveness: console summary plus CSV/JSON next to the run file
+    metrics.print(out);
+    metrics.writeCsv(Paths.get(metricsFile + ".csv"));
+    metrics.writeJson(Paths.get(metricsFile + ".json"), runTag);
+    out.println("Metrics: " + metricsFile + ".csv, " + metricsFile + ".json");
+
+    out.println("\n--- TREC Eval Output for " + resultFile + " (" + runTag + ") ---");
+    summary.print(out, runTag);
+    out.println("--- End of TREC Eval ---\n");
+}
+
+// --- Evaluate a stored binary run straight from its columns ---
+private static void evaluateRun(Path runFile, TrecEvaluator evaluator) throws IOException {
+    long start = System.nanoTime();
+    RunFile run = RunFile.read(runFile);
+    TrecEvaluator.Summary summary = new TrecEvaluator.Summary(evaluator.cutoffs());
+    for (int q = 0; q < run.queries(); q++) {
+        int n = run.size(q);
+        String[] hitDocnos = new String[n];
+        float[] hitScores = new float[n];
+        for (int rank = 0; rank < n; rank++) {
+            hitDocnos[rank] = run.docno(q, rank);
+            hitScores[rank] = TrecEvaluator.trecScore(run.score(q, rank));
+        }
+        TrecEvaluator.QueryMeasures measures = evaluator.evaluate(run.qid(q), hitDocnos, hitScores, n);
+        if (measures != null) summary.add(measures);
+    }
+    System.out.printf("Run %s | MAP = %.4f | Recall@50 = %.4f | read and evaluated in %.1f ms\n",
+            run.runTag, summary.map(), summary.recall(TOP_K), (System.nanoTime() - start) / 1e6);
+    System.out.println("\n--- TREC Eval Output for " + runFile + " (" + run.runTag + ") ---");
+    summary.print(System.out, run.runTag);
+    System.out.println("--- End of TREC Eval ---");
+}
+
+// --- One TREC run line: qid Q0 docno rank score tag ---
+// Same text as String.format("%s Q0 %s %d %.6f %s\n", ...), without the
+// format parsing: the score is rounded to 6 decimals as trecScore does
+static String trecLine(String qid, String docno, int rank, float score, String runTag) {
+    StringBuilder sb = new StringBuilder(64);
+    appendTrecLine(sb, qid, docno, rank, score, runTag);
+    return sb.toString();
+}
+
+static void appendTrecLine(StringBuilder sb, String qid, String docno, int rank, float score, String runTag) {
+    sb.append(qid).append(" Q0 ").append(docno).append(' ').append(rank).append(' ');
+    double v = score;
+    if (v < 0 || (v == 0 && Double.doubleToRawLongBits(v) != 0)) {
+        sb.append('-');
+        v = -v;
+    }
+    long micros = Math.round(v * 1e6);
+    long fraction = micros % 1_000_000;
+    sb.append(micros / 1_000_000).append('.');
+    for (long digit = 100_000; digit > 1 && fraction < digit; digit /= 10) sb.append('0');
+    sb.append(fraction).append(' ').append(runTag).append('\n');
+}
+
+// --- Search every similarity over one index in a single pass per query ---
+// Rankings per similarity name. The shared parse and scoring time of each
+// query is split evenly over the similarities, so each combination's metrics
+// show its amortized cost.
+private record GridRun(OpenIndex index, List<String> qids,
+                       Map<String, ScoreDoc[][]> rankings, Map<String, QueryMetrics> metrics) {}
+
+private static GridRun searchGrid(OpenIndex index, Analyzer analyzer, Map<String, Similarity> similarities,
+                                  Map<String, String> queries, QueryCache cache) throws Exception {
+    List<String> names = new ArrayList<>(similarities.keySet());
+    GridScorer grid = new GridScorer(index.reader(), new ArrayList<>(similarities.values()));
+    MultiFieldQueryParser parser = new MultiFieldQueryParser(QUERY_FIELDS, analyzer);
+    List<String> qids = queryIds(queries);
+
+    Map<String, ScoreDoc[][]> rankings = new LinkedHashMap<>();
+    Map<String, QueryMetrics> metrics = new LinkedHashMap<>();
+    for (String name : names) {
+        rankings.put(name, new ScoreDoc[qids.size()][]);
+        metrics.put(name, new QueryMetrics());
+    }
+
+    for (int i = 0; i < qids.size(); i++) {
+        String qtext = queries.get(qids.get(i));
+        long start = System.nanoTime();
+        Query query = cache == null
+                ? parser.parse(QueryParser.escape(qtext))
+                : cache.get(analyzer, QUERY_FIELDS, qtext, () -> parser.parse(QueryParser.escape(qtext)));
+        long parsed = System.nanoTime();
+        ScoreDoc[][] hits = new ScoreDoc[names.size()][];
+        TotalHits[] totalHits = new TotalHits[names.size()];
+        GridScorer.Result result = grid.search(query, TOP_K);
+        for (int s = 0; s < names.size(); s++) {
+            if (result != null) {
+                hits[s] = result.hits()[s];
+                totalHits[s] = new TotalHits(result.matches(), TotalHits.Relation.EQUAL_TO);
+            } else {
+                // a query shape the grid cannot score exactly: fall back to a regular search
+                IndexSearcher searcher = new IndexSearcher(index.reader());
+                searcher.setSimilarity(similarities.get(names.get(s)));
+                TopDocs top = searcher.search(query, TOP_K);
+                hits[s] = top.scoreDocs;
+                totalHits[s] = top.totalHits;
+            }
+        }
+        long searched = System.nanoTime();
+
+        for (int s = 0; s < names.size(); s++) {
+            rankings.get(names.get(s))[i] = hits[s];
+            QueryMetrics m = metrics.get(names.get(s));
+            m.time(QueryMetrics.Stage.PARSE, (parsed - start) / names.size());
+            m.time(QueryMetrics.Stage.SEARCH, (searched - parsed) / names.size());
+            m.count(index.reader(), query, totalHits[s]);
+        }
+    }
+    return new GridRun(index, qids, rankings, metrics);
+}
+
+// --- Query ids in run order (string order, as before), skipping empty queries ---
+static List<String> queryIds(Map<String, String> queries) {
+    List<String> qids = new ArrayList<>();
     for (String qid : new TreeSet<>(queries.keySet())) {
         String qtext = queries.get(qid);
         if (qtext == null || qtext.isEmpty()) continue;
-        Query query = parser.parse(QueryParser.escape(qtext));
-        TopDocs topDocs = searcher.search(query, 50);
-        ScoreDoc[] hits = topDocs.scoreDocs;
+        qids.add(qid);
+    }
+    return qids;
+}
 
-        // Write TREC-style output
-        for (int rank = 0; rank < hits.length; rank++) {
-            // Document doc = searcher.getIndexReader().document(hits[rank].doc);
-            Document doc = searcher.storedFields().document(hits[rank].doc);
-            String docno = doc.get("id");
-            resultsWriter.write(String.format("%s Q0 %s %d %.6f %s\n",
-                    qid, docno, rank + 1, hits[rank].score, runTag));
-        }
-
-        // Compute evaluation
-        Set<String> relevant = qrels.getOrDefault(qid, Collections.emptySet());
-        if (!relevant.isEmpty()) {
-            queryCount++;
-            int relRetrieved = 0;
-            double sumPrecAtRel = 0.0;
-            for (int rank = 0; rank < hits.length; rank++) {
-                // Document doc = searcher.getIndexReader().document(hits[rank].doc);
-                Document doc = searcher.storedFields().document(hits[rank].doc);
-                if (relevant.contains(doc.get("id"))) {
-                    relRetrieved++;
-                    sumPrecAtRel += (double) relRetrieved / (rank + 1);
+// --- Run every query against one searcher, optionally spread over the options' executor ---
+// The first pass of a combination: options give the query threads, caches,
+// retrieval mode and field mode (SearchOptions.DEFAULTS for plain top-K
+// search); metrics may be null (benchmarks) for no timings
+static ScoreDoc[][] searchQueries(IndexSearcher searcher, Analyzer analyzer,
+                                  Map<String, String> queries, List<String> qids,
+                                  SearchOptions options, QueryMetrics metrics) throws Exception {
+    ScoreDoc[][] rankings = new ScoreDoc[qids.size()][];
+    if (options.executor == null) {
+        QueryParser parser = options.fieldMode.newParser(analyzer);
+        for (int i = 0; i < qids.size(); i++) {
+            rankings[i] = searchQuery(searcher, parser, queries.get(qids.get(i)), options, metrics);
+        }
+        return rankings;
+    }
+
+    // QueryParser is not thread-safe, so each task builds its own
+    List<Future<ScoreDoc[]>> futures = new ArrayList<>(qids.size());
+    for (String qid : qids) {
+        String qtext = queries.get(qid);
+        futures.add(options.executor.submit(() -> searchQuery(searcher,
+                options.fieldMode.newParser(analyzer), qtext, options, metrics)));
+    }
+    for (int i = 0; i < futures.size(); i++) {
+        try {
+            rankings[i] = futures.get(i).get();
+        } catch (ExecutionException e) {
+            for (Future<ScoreDoc[]> f : futures) f.cancel(true);
+            Throwable cause = e.getCause();
+            if (cause instanceof Exception) throw (Exception) cause;
+            throw e;
+        }
+    }
+    return rankings;
+}
+
+// parser must be one options.fieldMode made, as the query cache keys on the mode's fields
+static ScoreDoc[] searchQuery(IndexSearcher searcher, QueryParser parser, String qtext,
+                              SearchOptions options, QueryMetrics metrics) throws ParseException, IOException {
+    RetrievalMode retrieval = options.retrieval;
+    long start = System.nanoTime();
+    Query query = parseQuery(parser, options.fieldMode.cacheFields(), qtext, options.queryCache);
+    query = retrieval.prune(searcher.getIndexReader(), query);
+    long parsed = System.nanoTime();
+    Query target = query;
+    ResultCache.Search search = () -> retrieval.search(searcher, target, TOP_K);
+    ResultCache.Result result = options.resultCache == null ? new ResultCache.Result(search.search(), false)
+            : options.resultCache.search(searcher, parser.getAnalyzer().getClass().getName(), query, TOP_K,
+                    retrieval.totalHitsThreshold, search);
+    long searched = System.nanoTime();
+    if (metrics != null) {
+        metrics.time(QueryMetrics.Stage.PARSE, parsed - start);
+        // a cache hit ran no search: its lookup time and the work counters stay out of the search figures
+        if (result.cached()) {
+            metrics.time(QueryMetrics.Stage.CACHED, searched - parsed);
+        } else {
+            metrics.time(QueryMetrics.Stage.SEARCH, searched - parsed);
+            metrics.count(searcher.getIndexReader(), query, result.top().totalHits);
+        }
+    }
+    return result.top().scoreDocs;
+}
+
+static Query parseQuery(QueryParser parser, String[] cacheFields, String qtext,
+                        QueryCache cache) throws ParseException {
+    return cache == null
+            ? parser.parse(QueryParser.escape(qtext))
+            : cache.get(parser.getAnalyzer(), cacheFields, qtext, () -> parser.parse(QueryParser.escape(qtext)));
+}
+
+// --- Service mode: build or reuse every analyzer index, then serve until the JVM exits ---
+private static void serve(int port, Map<String, Analyzer> analyzers, Map<String, Similarity> similarities,
+                          String collectionHash, IndexingConfig indexing, IndexStore store,
+                          SearchOptions options, long refreshMs) throws Exception {
+    Map<String, Directory> directories = new LinkedHashMap<>();
+    for (String analyzerName : analyzers.keySet()) {
+        String indexDir = INDEX_DIR + "_" + analyzerName;
+        Directory directory = store.open(Paths.get(indexDir));
+        directories.put(analyzerName, directory);
+        ensureIndex(Paths.get(CRAN_PATH), directory, indexDir, analyzerName, analyzers.get(analyzerName),
+                collectionHash, indexing, System.out);
+        store.warm(directory, System.out);
+    }
+
+    SearchService service = new SearchService(analyzers, similarities, directories, options);
+    ExecutorService handlers = options.executor != null ? options.executor
+            : Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+    service.start(port, handlers, refreshMs);
+    Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+        try {
+            service.close();
+        } catch (IOException e) {
+            System.err.println("Failed to close search service: " + e.getMessage());
+        }
+        handlers.shutdown();
+        try {
+            options.close();
+        } catch (IOException e) {
+            System.err.println("Failed to close search options: " + e.getMessage());
+        }
+    }));
+    System.out.printf("Serving %d analyzers x %d similarities on http://127.0.0.1:%d (POST /search, POST /refresh, GET /stats)\n",
+            analyzers.size(), similarities.size(), service.port());
+}
+
+// Heap one combination keeps while it runs, in KB: its QueryMetrics (a fixed
+// histogram per stage and counter, the bulk of it), every set of TOP_K
+// rankings per query that is alive at once (the first pass; RM3's expanded
+// run; dense hits and the fused run; the reranked copy; the reference run of
+// a field-mode or exhaustive comparison), the run buffer (text writer, or the
+// columns of a binary run) and the captured report. Index readers are shared
+// per analyzer and not counted.
+private static int estimateComboMemoryKb(int numQueries, SearchOptions options) {
+    // ScoreDoc: object header, doc, score, shardIndex; plus its array slot
+    long hitBytes = 24 + 8;
+    long rankingBytes = (long) numQueries * (16 + TOP_K * hitBytes);
+    boolean compared = options.fieldMode != FieldMode.MULTI || options.retrieval.compareExhaustive();
+    int rankingSets = 1 + (options.feedback != null ? 1 : 0) + (options.dense != null ? 2 : 0)
+            + (options.reranker != null ? 1 : 0) + (compared ? 1 : 0);
+    long runBytes = options.runFormat.binary
+            ? (long) numQueries * TOP_K * (Integer.BYTES + Float.BYTES) + 4 * 8192
+            : 2 * 8192;
+    long reportBytes = 16 * 1024;
+    long bytes = QueryMetrics.footprintBytes() + rankingSets * rankingBytes + runBytes + reportBytes;
+    return (int) ((bytes + 1023) >> 10);
+}
+
+// An analyzer's open index: the reader and its docno lookup, built once and
+// shared by every similarity evaluated against it
+private record OpenIndex(DirectoryReader reader, DocnoLookup docnos) {
+
+    static OpenIndex open(Directory directory) throws IOException {
+        DirectoryReader reader = DirectoryReader.open(directory);
+        return new OpenIndex(reader, DocnoLookup.load(reader));
+    }
+
+    void closeQuietly() {
+        try {
+            reader.close();
+            reader.directory().close();
+        } catch (IOException e) {
+            System.err.println("Failed to close reader: " + e.getMessage());
+        }
+    }
+}
+
+
+    // -----------------------------
+    // Index reuse
+    // An index is keyed by analyzer identity and the collection content hash,
+    // recorded in the commit user data. A matching key means the index on disk
+    // was built from the same input and can be searched as-is. With
+    // --incremental, an index whose key differs only in the collection hash is
+    // brought up to date in place.
+    // -----------------------------
+    private static final String INDEX_KEY = "cranfield.indexKey";
+    private static final String INDEX_FORMAT = "3"; // 2: per-document content hash, 3: title/body term vectors
+
+    private static void ensureIndex(Path cranPath, Directory directory, String indexDir, String analyzerName,
+                                    Analyzer analyzer, String collectionHash, IndexingConfig indexing,
+                                    PrintStream out) throws IOException {
+        String key = indexKey(analyzerName, analyzer, indexing, collectionHash);
+        String existing = readIndexKey(directory);
+        if (key.equals(existing) && !indexing.reindex) {
+            int segments = segmentCount(directory, indexing);
+            if (segments == indexing.segments) {
+                out.printf("Index %s is up to date, skipping indexing.\n", indexDir);
+                return;
+            }
+            out.printf("Index %s has %d segment(s), rebuilding as %d.\n", indexDir, segments, indexing.segments);
+        }
+        if (canUpdate(existing, key, indexing)) {
+            out.printf("Index %s is stale, applying collection changes.\n", indexDir);
+            updateIndex(cranPath, directory, analyzer, key, indexing, out);
+            return;
+        }
+        indexDocuments(cranPath, directory, analyzer, key, indexing, out);
+    }
+
+    // Whether ensureIndex would build this index from scratch
+    private static boolean needsFullBuild(Directory directory, String key, IndexingConfig indexing)
+            throws IOException {
+        String existing = readIndexKey(directory);
+        if (key.equals(existing) && !indexing.reindex && segmentCount(directory, indexing) == indexing.segments) {
+            return false;
+        }
+        return !canUpdate(existing, key, indexing);
+    }
+
+    // Only counted when --segments asks for a count
+    private static int segmentCount(Directory directory, IndexingConfig indexing) throws IOException {
+        return indexing.segments > 0 ? SegmentInfos.readLatestCommit(directory).size() : 0;
+    }
+
+    private static boolean canUpdate(String existing, String key, IndexingConfig indexing) {
+        return indexing.incremental && !indexing.reindex && existing != null && sameIndexLayout(existing, key);
+    }
+
+    // --shared-analysis: the indexes that need a full build and whose analyzers
+    // share the tokenizer are built together before the sweep. Returns their
+    // analyzer names; with fewer than two there is nothing to share and every
+    // index goes through ensureIndex as usual.
+    private static Set<String> buildShared(Path cranPath, Map<String, Analyzer> analyzers, String collectionHash,
+                                           IndexingConfig indexing, IndexStore store) throws IOException {
+        List<String> names = new ArrayList<>();
+        List<Directory> targets = new ArrayList<>();
+        List<Directory> directories = new ArrayList<>();
+        try {
+            for (String analyzerName : analyzers.keySet()) {
+                Analyzer analyzer = analyzers.get(analyzerName);
+                if (SharedAnalysis.tail(analyzer) == null) continue;
+                Directory directory = store.open(Paths.get(INDEX_DIR + "_" + analyzerName));
+                directories.add(directory);
+                if (needsFullBuild(directory, indexKey(analyzerName, analyzer, indexing, collectionHash),
+                        indexing)) {
+                    names.add(analyzerName);
+                    targets.add(directory);
                 }
             }
-            sumAvgPrecision += (relevant.isEmpty() ? 0 : sumPrecAtRel / relevant.size());
-            long relInTop50 = Arrays.stream(hits)
-                    .filter(sd -> {
-                        try {
-                            return relevant.contains(searcher.storedFields().document(sd.doc).get("id"));
-                        } catch (IOException e) { return false; }
-                    }).count();
-            sumRecallAt50 += (double) relInTop50 / relevant.size();
+            if (names.size() < 2) return Set.of();
+
+            int n = names.size();
+            String[] indexDirs = new String[n];
+            Analyzer[] shared = new Analyzer[n];
+            String[] keys = new String[n];
+            for (int i = 0; i < n; i++) {
+                String analyzerName = names.get(i);
+                indexDirs[i] = INDEX_DIR + "_" + analyzerName;
+                shared[i] = analyzers.get(analyzerName);
+                keys[i] = indexKey(analyzerName, shared[i], indexing, collectionHash);
+            }
+            indexDocumentsShared(cranPath, indexDirs, targets.toArray(new Directory[0]), shared, keys, indexing,
+                    System.out);
+            return new HashSet<>(names);
+        } finally {
+            for (Directory directory : directories) directory.close();
         }
     }
 
-    resultsWriter.close();
-    reader.close();
-    dir.close();
+    // The collection hash comes last (see sameIndexLayout). Optional parts are
+    // only present when used, so an index built without them keeps its key
+    private static String indexKey(String analyzerName, Analyzer analyzer, IndexingConfig indexing,
+                                   String collectionHash) {
+        return "v" + INDEX_FORMAT + ":" + analyzerName + ":" + analyzer.getClass().getName()
+                + (indexing.contentField ? ":content" : "")
+                + (indexing.dense == null ? "" : ":" + indexing.dense.id()) + ":" + collectionHash;
+    }
 
-    double MAP = (queryCount == 0) ? 0 : sumAvgPrecision / queryCount;
-    double meanRecall = (queryCount == 0) ? 0 : sumRecallAt50 / queryCount;
+    // Same format and analyzer, possibly a different collection
+    private static boolean sameIndexLayout(String existingKey, String key) {
+        int cut = key.lastIndexOf(':');
+        return existingKey.length() > cut && existingKey.regionMatches(0, key, 0, cut + 1);
+    }
 
-    System.out.printf("Combo %-20s | MAP = %.4f | Recall@50 = %.4f | Results: %s\n",
-            runTag, MAP, meanRecall, resultFile);
-        
-    // --- Run trec_eval automatically ---
-    runTrecEval(QRELS_PATH, resultFile, runTag);
-}
+    private static String readIndexKey(Directory directory) {
+        try {
+            if (!DirectoryReader.indexExists(directory)) return null;
+            return SegmentInfos.readLatestCommit(directory).getUserData().get(INDEX_KEY);
+        } catch (IOException e) {
+            // unreadable or corrupt index: treat as stale and rebuild
+            return null;
+        }
+    }
 
+    private static String sha256Hex(Path file) throws IOException {
+        try (InputStream in = Files.newInputStream(file)) {
+            java.security.MessageDigest md = java.security.MessageDigest.getInstance("SHA-256");
+            byte[] buf = new byte[8192];
+            int n;
+            while ((n = in.read(buf)) > 0) {
+                md.update(buf, 0, n);
+            }
+            return HexFormat.of().formatHex(md.digest());
+        } catch (java.security.NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 not available", e);
+        }
+    }
 
     // -----------------------------
     // Indexing
     // -----------------------------
-    private static void indexDocuments(List<DocStruct> docs, String indexDir, Analyzer analyzer) throws IOException {
-        Path indexPath = Paths.get(indexDir);
-        if (!Files.exists(indexPath)) {
-            Files.createDirectories(indexPath);
+    // Writes into the caller's directory and leaves it open for the reader
+    private static void indexDocuments(Path cranPath, Directory directory, Analyzer analyzer, String indexKey,
+                                       IndexingConfig indexing, PrintStream out) throws IOException {
+        // segment size follows from the document count, so count the records first
+        Build build = startBuild(cranPath, directory, analyzer, indexing,
+                indexing.segments > 0 ? countRecords(cranPath) : 0);
+
+        out.printf("Indexing documents with %d thread(s)...\n", indexing.threads);
+        long start = System.nanoTime();
+        int count;
+        try {
+            // Documents are indexed as they are parsed; the collection is never held in memory
+            try (CranfieldReader docs = new CranfieldReader(cranPath)) {
+                count = BulkIndexer.index(docs, build.writer(), indexing.threads, build.embedder(),
+                        indexing.contentField, out);
+            }
+            finishBuild(build, directory, indexKey, indexing, out);
+        } catch (IOException | RuntimeException e) {
+            rollBack(new Build[]{build}, e);
+            throw e;
         }
-        Directory directory = FSDirectory.open(indexPath);
-        IndexWriterConfig config = new IndexWriterConfig(analyzer);
+        double seconds = (System.nanoTime() - start) / 1e9;
+        double mb = Files.size(cranPath) / (1024.0 * 1024.0);
+        out.println("Indexing complete. Total indexed: " + count);
+        out.printf("Indexing throughput: %.0f docs/sec, %.2f MB/sec (%.2f MB in %.2fs)\n",
+                count / seconds, mb / seconds, mb, seconds);
+    }
+
+    // --shared-analysis: one pass over the collection feeds every given index,
+    // each field tokenized once for all of them (see SharedAnalysis)
+    private static void indexDocumentsShared(Path cranPath, String[] indexDirs, Directory[] directories,
+                                             Analyzer[] analyzers, String[] indexKeys, IndexingConfig indexing,
+                                             PrintStream out) throws IOException {
+        int expected = indexing.segments > 0 ? countRecords(cranPath) : 0;
+        Build[] builds = new Build[directories.length];
+        IndexWriter[] writers = new IndexWriter[directories.length];
+        Embedder[] embedders = new Embedder[directories.length];
+        long start;
+        int count;
+        try {
+            for (int i = 0; i < directories.length; i++) {
+                builds[i] = startBuild(cranPath, directories[i], analyzers[i], indexing, expected);
+                writers[i] = builds[i].writer();
+                embedders[i] = builds[i].embedder();
+            }
+
+            out.printf("Indexing documents into %s with shared analysis, %d thread(s)...\n",
+                    String.join(", ", indexDirs), indexing.threads);
+            start = System.nanoTime();
+            try (CranfieldReader docs = new CranfieldReader(cranPath)) {
+                count = SharedAnalysis.index(docs, writers, analyzers, embedders, indexing.contentField,
+                        indexing.threads, out);
+            }
+            for (int i = 0; i < directories.length; i++) {
+                out.printf("Index %s:\n", indexDirs[i]);
+                finishBuild(builds[i], directories[i], indexKeys[i], indexing, out);
+            }
+        } catch (IOException | RuntimeException e) {
+            // the indexes not yet finished keep their previous commit
+            rollBack(builds, e);
+            throw e;
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+        double mb = Files.size(cranPath) / (1024.0 * 1024.0);
+        out.printf("Indexing complete. Total indexed: %d into each of %d indexes\n", count, directories.length);
+        out.printf("Indexing throughput: %.0f docs/sec, %.2f MB/sec (%.2f MB in %.2fs)\n",
+                count / seconds, mb / seconds, mb, seconds);
+        if (indexing.compareAnalysis) SharedAnalysis.compareCpu(cranPath, analyzers, indexing.contentField, out);
+    }
+
+    // A full build's open writer, with what finishBuild needs afterwards
+    private record Build(IndexWriter writer, MergePolicy merges, Embedder embedder,
+                         DenseRetrieval.BuildTimer vectors, long idfNanos) {}
+
+    private static Build startBuild(Path cranPath, Directory directory, Analyzer analyzer, IndexingConfig indexing,
+                                    int expectedDocs) throws IOException {
+        IndexWriterConfig config = indexing.apply(new IndexWriterConfig(analyzer));
         config.setOpenMode(IndexWriterConfig.OpenMode.CREATE);
+        MergePolicy merges = indexing.segments > 0 ? indexing.applySegmentTarget(config, expectedDocs) : null;
+        Embedder embedder = null;
+        DenseRetrieval.BuildTimer vectors = null;
+        long idfNanos = 0;
+        if (indexing.dense != null) {
+            long idfStart = System.nanoTime();
+            embedder = indexing.dense.indexEmbedder(cranPath, analyzer);
+            idfNanos = System.nanoTime() - idfStart;
+            vectors = indexing.dense.apply(config);
+        }
+        return new Build(new IndexWriter(directory, config), merges, embedder, vectors, idfNanos);
+    }
 
-        IndexWriter writer = new IndexWriter(directory, config);
+    // A failed build: every writer still open is rolled back, which closes it
+    // and releases its write.lock
+    private static void rollBack(Build[] builds, Exception failure) {
+        for (Build build : builds) {
+            if (build == null || !build.writer().isOpen()) continue;
+            try {
+                build.writer().rollback();
+            } catch (IOException | RuntimeException e) {
+                failure.addSuppressed(e);
+            }
+        }
+    }
 
-        System.out.println("Indexing documents...");
-        int count = 0;
-        for (DocStruct d : docs) {
-            Document doc = new Document();
-            // id: store as StringField? We need it searchable as exact identifier; store it and keep searchable
-            // Use TextField for consistency with user's earlier code, but better is StringField. We want to sort/compare exact numbers,
-            // but queries will search title/body. We will use StringField for id.
-            doc.add(new StringField("id", d.id, Field.Store.YES));
-            doc.add(new TextField("title", d.title == null ? "" : d.title, Field.Store.YES));
-            doc.add(new TextField("author", d.author == null ? "" : d.author, Field.Store.YES));
-            doc.add(new TextField("bib", d.bib == null ? "" : d.bib, Field.Store.YES));
-            doc.add(new TextField("body", d.body == null ? "" : d.body, Field.Store.YES));
-            writer.addDocument(doc);
-
-            count++;
-            if (count % 200 == 0) System.out.printf("  indexed %d docs...\n", count);
+    // Merges as configured, commits under the index key and closes the writer
+    private static void finishBuild(Build build, Directory directory, String indexKey, IndexingConfig indexing,
+                                    PrintStream out) throws IOException {
+        IndexWriter writer = build.writer();
+        if (indexing.forceMerge) {
+            // search-only benchmark indexes: one segment
+            writer.forceMerge(1);
+        } else if (build.merges() != null) {
+            // more segments than asked for when several indexing threads flushed
+            writer.getConfig().setMergePolicy(build.merges());
+            writer.forceMerge(indexing.segments);
         }
+        writer.setLiveCommitData(Map.of(INDEX_KEY, indexKey).entrySet());
         writer.close();
-        directory.close();
-        System.out.println("Indexing complete. Total indexed: " + docs.size());
+        if (indexing.segments > 0) {
+            out.printf("Index segments: %d (target %d)\n",
+                    SegmentInfos.readLatestCommit(directory).size(), indexing.segments);
+        }
+        if (build.vectors() != null) {
+            out.printf("Dense vectors: %d indexed, idf pass %.2fs, HNSW build (insert, flush, merge) %.2fs\n",
+                    build.vectors().vectors(), build.idfNanos() / 1e9, build.vectors().seconds());
+        }
     }
 
-    // -----------------------------
-    // Parse Cranfield doc file (cran.all.1400)
-    // -----------------------------
-    private static List<DocStruct> parseCranfieldDocument(String cranfieldPath) throws IOException {
-        List<DocStruct> docs = new ArrayList<>();
-        List<String> lines = Files.readAllLines(Paths.get(cranfieldPath));
+    private static int countRecords(Path cranPath) throws IOException {
+        int count = 0;
+        try (CranfieldReader docs = new CranfieldReader(cranPath)) {
+            while (docs.hasNext()) {
+                docs.next();
+                count++;
+            }
+        }
+        return count;
+    }
 
-        String id = "", title = "", author = "", bib = "", body = "";
-        String currentTag = "";
+    // Incremental path: diff the collection against the stored id -> content
+    // hash of every live document, then add new records, replace changed ones
+    // by id and delete the ones that are gone, all in one commit
+    private static void updateIndex(Path cranPath, Directory directory, Analyzer analyzer, String indexKey,
+                                    IndexingConfig indexing, PrintStream out) throws IOException {
+        long start = System.nanoTime();
+        Map<String, String> indexed = new HashMap<>();
+        try (DirectoryReader reader = DirectoryReader.open(directory)) {
+            Bits liveDocs = MultiBits.getLiveDocs(reader);
+            StoredFields storedFields = reader.storedFields();
+            Set<String> fields = Set.of("id", "hash");
+            for (int docid = 0; docid < reader.maxDoc(); docid++) {
+                if (liveDocs != null && !liveDocs.get(docid)) continue;
+                Document stored = storedFields.document(docid, fields);
+                indexed.put(stored.get("id"), stored.get("hash"));
+            }
+        }
 
-        for (String rawLine : lines) {
-            String line = rawLine;
-            if (line.startsWith(".I")) {
-                // save previous
-                if (!id.isEmpty()) {
-                    docs.add(new DocStruct(id.trim(), title.trim(), author.trim(), bib.trim(), body.trim()));
-                    title = author = bib = body = "";
+        IndexWriterConfig config = indexing.apply(new IndexWriterConfig(analyzer));
+        config.setOpenMode(IndexWriterConfig.OpenMode.APPEND);
+        // added and changed records are embedded with the current collection's
+        // idf; unchanged ones keep the vectors they were indexed with
+        Embedder embedder = null;
+        if (indexing.dense != null) {
+            embedder = indexing.dense.indexEmbedder(cranPath, analyzer);
+            indexing.dense.apply(config);
+        }
+        if (config.getMergePolicy() instanceof TieredMergePolicy tiered) {
+            // by default segments with under 10% deletes are left alone
+            tiered.setForceMergeDeletesPctAllowed(0.0);
+        }
+        int added = 0, updated = 0, unchanged = 0;
+        try (IndexWriter writer = new IndexWriter(directory, config);
+             CranfieldReader docs = new CranfieldReader(cranPath)) {
+            BulkIndexer.DocFields fields = new BulkIndexer.DocFields(embedder, indexing.contentField);
+            while (docs.hasNext()) {
+                DocStruct d = docs.next();
+                Document doc = fields.set(d);
+                String previous = indexed.remove(d.id);
+                if (previous == null) {
+                    writer.addDocument(doc);
+                    added++;
+                } else if (!previous.equals(fields.hash.stringValue())) {
+                    writer.updateDocument(new Term("id", d.id), doc);
+                    updated++;
+                } else {
+                    unchanged++;
                 }
-                id = line.substring(3).trim(); // after ".I "
-                currentTag = "";
-            } else if (line.startsWith(".T")) {
-                currentTag = "T";
-            } else if (line.startsWith(".A")) {
-                currentTag = "A";
-            } else if (line.startsWith(".B")) {
-                currentTag = "B";
-            } else if (line.startsWith(".W")) {
-                currentTag = "W";
-            } else {
-                // content line
-                if (currentTag.equals("T")) {
-                    title += line + " ";
-                } else if (currentTag.equals("A")) {
-                    author += line + " ";
-                } else if (currentTag.equals("B")) {
-                    bib += line + " ";
-                } else if (currentTag.equals("W")) {
-                    body += line + " ";
-                } // else ignore
             }
+            // whatever is left was not in the collection any more
+            for (String id : indexed.keySet()) writer.deleteDocuments(new Term("id", id));
+            // deleted documents still count in term and length statistics until they
+            // are merged away; expunge them so scores match a full rebuild
+            if (indexing.forceMerge) {
+                writer.forceMerge(1);
+            } else if (updated > 0 || !indexed.isEmpty()) {
+                writer.forceMergeDeletes();
+            }
+            writer.setLiveCommitData(Map.of(INDEX_KEY, indexKey).entrySet());
+            writer.commit();
         }
-        // last doc
-        if (!id.isEmpty()) {
-            docs.add(new DocStruct(id.trim(), title.trim(), author.trim(), bib.trim(), body.trim()));
-        }
-        return docs;
+        out.printf("Incremental update: %d added, %d updated, %d deleted, %d unchanged in %.2fs\n",
+                added, updated, indexed.size(), unchanged, (System.nanoTime() - start) / 1e9);
     }
 
     // -----------------------------
@@ -436,7 +1508,7 @@ private static void evaluateCombination(String indexDir, Analyzer analyzer, Simi
     // .I 2
     // ...
     // -----------------------------
-    private static Map<String, String> parseCranfieldQueries(String qpath) throws IOException {
+    static Map<String, String> parseCranfieldQueries(String qpath) throws IOException {
         // LinkedHashMap<String, String> queries = new LinkedHashMap<>();
         // int id = 1; // start ID from 1
 
@@ -533,26 +1605,6 @@ private static void evaluateCombination(String indexDir, Analyzer analyzer, Simi
     return queries;
     }
 
-    // -----------------------------
-    // Parse qrels: format "qid docno rel" (space separated)
-    // We'll store for each qid the set of relevant docnos (strings)
-    // -----------------------------
-    private static Map<String, Set<String>> parseQrels(String qrelPath) throws IOException {
-        Map<String, Set<String>> qrels = new HashMap<>();
-        List<String> lines = Files.readAllLines(Paths.get(qrelPath));
-        for (String l : lines) {
-            l = l.trim();
-            if (l.isEmpty()) continue;
-            String[] parts = l.split("\\s+");
-            if (parts.length < 3) continue;
-            String qid = parts[0];
-            String docno = parts[1];
-            // String rel = parts[2]; // relevance code (1-5) but we treat all present as relevant
-            qrels.computeIfAbsent(qid, k -> new HashSet<>()).add(docno);
-        }
-        return qrels;
-    }
-
     // -----------------------------
     // Small arg parser
     // -----------------------------
@@ -572,22 +1624,4 @@ private static void evaluateCombination(String indexDir, Analyzer analyzer, Simi
         }
         return amap;
     }
-
-    // -----------------------------
-    // Document container
-    // -----------------------------
-    private static class DocStruct {
-        String id;
-        String title;
-        String author;
-        String bib;
-        String body;
-        DocStruct(String id, String title, String author, String bib, String body) {
-            this.id = id;
-            this.title = title;
-            this.author = author;
-            this.bib = bib;
-            this.body = body;
-        }
-    }
 }
@@ -0,0 +1,77 @@
+package org.cranfield;
+
+import java.util.*;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.queryparser.classic.ParseException;
+import org.apache.lucene.search.Query;
+
+// -----------------------------
+// Compiled-query cache keyed by (analyzer, field set, query text).
+// Lucene Query objects are immutable and independent of the similarity (that
+// only enters when the searcher builds a Weight), so every similarity swept
+// over an analyzer can reuse the queries the first one parsed. Bounded LRU;
+// thread-safe. A miss is parsed outside the lock, so two threads missing on
+// the same text may both parse it.
+// -----------------------------
+class QueryCache {
+
+    interface Compiler {
+        Query compile() throws ParseException;
+    }
+
+    // Analyzer compares by identity: one instance per analyzer in a sweep
+    private record Key(Analyzer analyzer, List<String> fields, String text) {}
+
+    private final int capacity;
+    private final LinkedHashMap<Key, Query> entries;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    QueryCache(int capacity) {
+        if (capacity < 1) throw new IllegalArgumentException("query cache capacity must be >= 1");
+        this.capacity = capacity;
+        this.entries = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Key, Query> eldest) {
+                if (size() <= QueryCache.this.capacity) return false;
+                evictions.increment();
+                return true;
+            }
+        };
+    }
+
+    Query get(Analyzer analyzer, String[] fields, String text, Compiler compiler) throws ParseException {
+        Key key = new Key(analyzer, List.of(fields), text);
+        Query query;
+        synchronized (entries) {
+            query = entries.get(key);
+        }
+        if (query != null) {
+            hits.increment();
+            return query;
+        }
+        misses.increment();
+        query = compiler.compile();
+        synchronized (entries) {
+            entries.put(key, query);
+        }
+        return query;
+    }
+
+    int size() {
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+
+    String stats() {
+        long h = hits.sum();
+        long m = misses.sum();
+        double rate = h + m == 0 ? 0.0 : (double) h / (h + m);
+        return String.format("hits = %d | misses = %d | hit rate = %.1f%% | evictions = %d | size = %d/%d",
+                h, m, 100.0 * rate, evictions.sum(), size(), capacity);
+    }
+}
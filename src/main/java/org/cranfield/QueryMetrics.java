@@ -0,0 +1,174 @@
+package org.cranfield;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.QueryVisitor;
+import org.apache.lucene.search.TotalHits;
+
+// -----------------------------
+// Per-combination instrumentation: one histogram per query stage plus
+// per-query work counters, all recorded per query so the report shows the
+// tail and not just the average.
+//
+//   parse     MultiFieldQueryParser.parse
+//   search    IndexSearcher.search (top-K collection), executed searches only
+//   cached    first-pass top-K answered by --result-cache instead of a search
+//   resolve   docid -> docno for the hits
+//   write     formatting and writing the TREC run lines
+//   feedback  RM3 expansion model for the query, built or taken from the cache
+//   expanded  second-pass search with the expanded query
+//   dense     query embedding, kNN search and fusion with the lexical hits
+//   rerank    second-stage reranking: feature extraction plus a share of the
+//             batch's model scoring
+//
+//   segments  index segments (leaves) the query was run against
+//   postings  postings entries behind the query's terms (sum of docFreq), an
+//             upper bound on what the scorer can visit once it skips
+//   hits      matching documents counted by the collector (a lower bound once
+//             Lucene stops counting exactly)
+// The counters, like search, cover executed searches only.
+//
+// Stages that never ran (cached without --result-cache, RM3 without --rm3,
+// dense without --dense, rerank without --rerank) are left out of the report.
+// -----------------------------
+class QueryMetrics {
+
+    enum Stage { PARSE, SEARCH, CACHED, FEEDBACK, EXPANDED, DENSE, RERANK, RESOLVE, WRITE }
+
+    private final Map<Stage, LatencyHistogram> stages = new EnumMap<>(Stage.class);
+    private final LatencyHistogram segments = new LatencyHistogram();
+    private final LatencyHistogram postings = new LatencyHistogram();
+    private final LatencyHistogram hits = new LatencyHistogram();
+
+    QueryMetrics() {
+        for (Stage stage : Stage.values()) stages.put(stage, new LatencyHistogram());
+    }
+
+    // Heap held by one instance: a histogram per stage and per counter
+    static long footprintBytes() {
+        return (Stage.values().length + 3) * LatencyHistogram.FOOTPRINT_BYTES;
+    }
+
+    void time(Stage stage, long nanos) {
+        stages.get(stage).record(nanos);
+    }
+
+    // Work counters for one executed query; term statistics come from the
+    // terms dictionary only, so this does not touch the postings themselves
+    void count(IndexReader reader, Query query, TotalHits totalHits) throws IOException {
+        Set<Term> terms = new HashSet<>();
+        query.visit(QueryVisitor.termCollector(terms));
+        long docFreqs = 0;
+        for (Term term : terms) docFreqs += reader.docFreq(term);
+
+        segments.record(reader.leaves().size());
+        postings.record(docFreqs);
+        hits.record(totalHits.value());
+    }
+
+    // One line per stage, latencies in microseconds
+    void print(PrintStream out) {
+        out.println("Stage latency (us)       p50        p95        p99        max");
+        for (Stage stage : recorded()) {
+            LatencyHistogram h = stages.get(stage);
+            out.printf("  %-10s %12.1f %10.1f %10.1f %10.1f\n", name(stage),
+                    micros(h.percentile(50)), micros(h.percentile(95)), micros(h.percentile(99)), micros(h.max()));
+        }
+        out.printf("Per query: segments = %.1f | postings = %.1f (p95 %d) | hits = %.1f\n",
+                segments.mean(), postings.mean(), postings.percentile(95), hits.mean());
+    }
+
+    void writeCsv(Path file) throws IOException {
+        try (BufferedWriter w = Files.newBufferedWriter(file, StandardCharsets.UTF_8)) {
+            w.write("metric,unit,count,mean,p50,p95,p99,max\n");
+            for (Stage stage : recorded()) {
+                LatencyHistogram h = stages.get(stage);
+                w.write(String.format(Locale.ROOT, "%s,us,%d,%.3f,%.3f,%.3f,%.3f,%.3f\n", name(stage), h.count(),
+                        h.mean() / 1000.0, micros(h.percentile(50)), micros(h.percentile(95)),
+                        micros(h.percentile(99)), micros(h.max())));
+            }
+            for (Map.Entry<String, LatencyHistogram> e : counters().entrySet()) {
+                LatencyHistogram h = e.getValue();
+                w.write(String.format(Locale.ROOT, "%s,count,%d,%.3f,%d,%d,%d,%d\n", e.getKey(), h.count(),
+                        h.mean(), h.percentile(50), h.percentile(95), h.percentile(99), h.max()));
+            }
+        }
+    }
+
+    void writeJson(Path file, String runTag) throws IOException {
+        Files.writeString(file, toJson(runTag), StandardCharsets.UTF_8);
+    }
+
+    String toJson(String runTag) {
+        StringBuilder sb = new StringBuilder();
+        sb.append("{\n  \"run\": \"").append(runTag).append("\",\n  \"stages_us\": {\n");
+        List<Stage> all = recorded();
+        for (int i = 0; i < all.size(); i++) {
+            LatencyHistogram h = stages.get(all.get(i));
+            sb.append(String.format(Locale.ROOT,
+                    "    \"%s\": {\"count\": %d, \"mean\": %.3f, \"p50\": %.3f, \"p95\": %.3f, \"p99\": %.3f, \"max\": %.3f}",
+                    name(all.get(i)), h.count(), h.mean() / 1000.0, micros(h.percentile(50)),
+                    micros(h.percentile(95)), micros(h.percentile(99)), micros(h.max())));
+            sb.append(i + 1 < all.size() ? ",\n" : "\n");
+        }
+        sb.append("  },\n  \"per_query\": {\n");
+        Iterator<Map.Entry<String, LatencyHistogram>> it = counters().entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<String, LatencyHistogram> e = it.next();
+            LatencyHistogram h = e.getValue();
+            sb.append(String.format(Locale.ROOT,
+                    "    \"%s\": {\"count\": %d, \"mean\": %.3f, \"p50\": %d, \"p95\": %d, \"p99\": %d, \"max\": %d}",
+                    e.getKey(), h.count(), h.mean(), h.percentile(50), h.percentile(95), h.percentile(99), h.max()));
+            sb.append(it.hasNext() ? ",\n" : "\n");
+        }
+        sb.append("  }\n}\n");
+        return sb.toString();
+    }
+
+    // Mean latency of a stage in nanoseconds, 0 if it never ran
+    double mean(Stage stage) {
+        return stages.get(stage).mean();
+    }
+
+    // Queries recorded in a stage
+    long count(Stage stage) {
+        return stages.get(stage).count();
+    }
+
+    long percentile(Stage stage, double p) {
+        return stages.get(stage).percentile(p);
+    }
+
+    // The core stages always; the optional ones once they have run
+    private List<Stage> recorded() {
+        List<Stage> recorded = new ArrayList<>();
+        for (Stage stage : Stage.values()) {
+            boolean optional = stage == Stage.CACHED || stage == Stage.FEEDBACK || stage == Stage.EXPANDED
+                    || stage == Stage.DENSE || stage == Stage.RERANK;
+            if (!optional || stages.get(stage).count() > 0) recorded.add(stage);
+        }
+        return recorded;
+    }
+
+    private Map<String, LatencyHistogram> counters() {
+        Map<String, LatencyHistogram> counters = new LinkedHashMap<>();
+        counters.put("segments", segments);
+        counters.put("postings", postings);
+        counters.put("hits", hits);
+        return counters;
+    }
+
+    private static String name(Stage stage) {
+        return stage.name().toLowerCase(Locale.ROOT);
+    }
+
+    private static double micros(long nanos) {
+        return nanos / 1000.0;
+    }
+}
@@ -0,0 +1,127 @@
+package org.cranfield;
+
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.Term;
+
+// -----------------------------
+// Random projection of a text's tf-idf vector. Every term owns a fixed
+// pseudo-random +-1 vector of D dimensions, derived from the term text and a
+// seed (so no vocabulary is stored), and a text is the sum of its terms'
+// vectors weighted by (1 + ln tf) * idf, scaled to unit length. Dot products
+// of the projections approximate the cosine of the tf-idf vectors
+// (Johnson-Lindenstrauss): lexical matching in a small dense space rather
+// than semantics, but local, deterministic and built from the collection
+// itself.
+//
+// Terms come from the index analyzer; idf from DocFreqs, which is a counting
+// pass over the collection while indexing and the index's own "content"
+// statistics when searching (title and body, so the same numbers). Terms
+// without documents are ignored. Thread-safe.
+// -----------------------------
+class RandomProjectionEmbedder implements Embedder {
+
+    interface DocFreqs {
+        int docFreq(String term) throws IOException;
+    }
+
+    private final Analyzer analyzer;
+    private final int dims;
+    private final long seed;
+    private final int numDocs;
+    private final DocFreqs docFreqs;
+    // term -> idf * projection; a missing term is NONE
+    private final Map<String, float[]> termVectors = new ConcurrentHashMap<>();
+    private static final float[] NONE = new float[0];
+
+    RandomProjectionEmbedder(Analyzer analyzer, int dims, long seed, int numDocs, DocFreqs docFreqs) {
+        this.analyzer = analyzer;
+        this.dims = dims;
+        this.seed = seed;
+        this.numDocs = numDocs;
+        this.docFreqs = docFreqs;
+    }
+
+    // Query side: statistics of the index the document vectors were built for
+    static RandomProjectionEmbedder fromIndex(IndexReader reader, Analyzer analyzer, int dims, long seed) {
+        return new RandomProjectionEmbedder(analyzer, dims, seed, reader.numDocs(),
+                term -> reader.docFreq(new Term(FieldMode.CONTENT, term)));
+    }
+
+    @Override
+    public int dimensions() {
+        return dims;
+    }
+
+    @Override
+    public String id() {
+        return "rp" + dims + "s" + Long.toHexString(seed);
+    }
+
+    @Override
+    public float[] embed(String... texts) throws IOException {
+        Map<String, Integer> freqs = new HashMap<>();
+        for (String text : texts) {
+            if (text == null || text.isEmpty()) continue;
+            try (TokenStream ts = analyzer.tokenStream(FieldMode.CONTENT, text)) {
+                CharTermAttribute term = ts.addAttribute(CharTermAttribute.class);
+                ts.reset();
+                while (ts.incrementToken()) freqs.merge(term.toString(), 1, Integer::sum);
+                ts.end();
+            }
+        }
+
+        float[] v = new float[dims];
+        boolean any = false;
+        for (Map.Entry<String, Integer> e : freqs.entrySet()) {
+            float[] tv = termVector(e.getKey());
+            if (tv == NONE) continue;
+            float w = 1f + (float) Math.log(e.getValue());
+            for (int d = 0; d < dims; d++) v[d] += w * tv[d];
+            any = true;
+        }
+        if (!any) return null;
+        double norm = 0;
+        for (float x : v) norm += x * x;
+        if (norm == 0) return null;
+        float scale = (float) (1.0 / Math.sqrt(norm));
+        for (int d = 0; d < dims; d++) v[d] *= scale;
+        return v;
+    }
+
+    private float[] termVector(String term) throws IOException {
+        float[] tv = termVectors.get(term);
+        if (tv != null) return tv;
+        int df = docFreqs.docFreq(term);
+        if (df == 0) {
+            tv = NONE;
+        } else {
+            float idf = (float) Math.log(1 + (numDocs - df + 0.5) / (df + 0.5));
+            tv = new float[dims];
+            SplittableRandom random = new SplittableRandom(seed ^ hash(term));
+            long bits = 0;
+            for (int d = 0; d < dims; d++) {
+                if ((d & 63) == 0) bits = random.nextLong();
+                tv[d] = (bits >>> (d & 63) & 1) == 0 ? idf : -idf;
+            }
+        }
+        termVectors.putIfAbsent(term, tv);
+        return tv;
+    }
+
+    // 64-bit FNV-1a over the term's chars: stable across JVMs, unlike a seeded hashCode
+    private static long hash(String term) {
+        long h = 0xcbf29ce484222325L;
+        for (int i = 0; i < term.length(); i++) {
+            h ^= term.charAt(i);
+            h *= 0x100000001b3L;
+        }
+        return h;
+    }
+}
@@ -0,0 +1,183 @@
+package org.cranfield;
+
+import java.io.IOException;
+import java.util.*;
+
+import org.apache.lucene.index.*;
+import org.apache.lucene.search.*;
+import org.apache.lucene.search.similarities.BM25Similarity;
+import org.apache.lucene.search.similarities.Similarity;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.IOSupplier;
+import org.apache.lucene.util.SmallFloat;
+
+// -----------------------------
+// Batched feature extraction for reranking. Every hit of every query in a
+// batch is one row; features are stored column-major (values[feature][row])
+// so a linear model scores the whole batch one feature column at a time.
+//
+//   score        first-stage score
+//   bm25_title   BM25 (k1=1.2, b=0.75) of the query terms in title
+//   bm25_body                                          ... in body
+//   bm25_author                                        ... in author
+//   bm25_bib                                           ... in bib
+//   proximity    1 / smallest distance between two different query terms in
+//                body (0 when fewer than two of them occur)
+//   doc_length   log(1 + body length), the length BM25 sees through the norm
+//
+// Per query the hits are visited in docid order, segment by segment, and each
+// query term's postings are advanced through them once per field. Buffers
+// are sized once per batch and reused for every hit, so extraction allocates
+// per query and segment (term lookups, postings enums), never per hit.
+// Not thread-safe: one instance per batch.
+// -----------------------------
+class RerankFeatures {
+
+    static final String[] NAMES = {
+            "score", "bm25_title", "bm25_body", "bm25_author", "bm25_bib", "proximity", "doc_length"};
+    static final int SCORE = 0, PROXIMITY = 5, DOC_LENGTH = 6;
+    private static final String[] BM25_FIELDS = {"title", "body", "author", "bib"};
+    private static final int FIRST_BM25 = 1;
+    private static final String BODY = "body";
+
+    private static final Similarity BM25 = new BM25Similarity();
+
+    final float[][] values;
+    private final IndexSearcher searcher;
+    private final List<LeafReaderContext> leaves;
+
+    // reused per query / per hit
+    private long[] order;              // docid << 32 | row, sorted by docid
+    private PostingsEnum[] postings = new PostingsEnum[0];
+    private Similarity.SimScorer[] scorers = new Similarity.SimScorer[0];
+    private TermStates[] states = new TermStates[0];
+    private long[] positions = new long[64];   // position << 16 | term, for proximity
+
+    RerankFeatures(IndexReader reader, int rows) {
+        this.values = new float[NAMES.length][rows];
+        this.searcher = new IndexSearcher(reader);
+        this.leaves = reader.leaves();
+        this.order = new long[64];
+    }
+
+    // Fills rows [firstRow, firstRow + n) from the first n hits of one query
+    void extract(Query query, ScoreDoc[] hits, int n, int firstRow) throws IOException {
+        if (n == 0) return;
+        BytesRef[] terms = queryTerms(query);
+        if (order.length < n) order = new long[Math.max(n, order.length * 2)];
+        if (postings.length < terms.length) {
+            postings = new PostingsEnum[terms.length];
+            scorers = new Similarity.SimScorer[terms.length];
+            states = new TermStates[terms.length];
+        }
+        for (int i = 0; i < n; i++) {
+            values[SCORE][firstRow + i] = hits[i].score;
+            order[i] = (long) hits[i].doc << 32 | i;
+        }
+        Arrays.sort(order, 0, n);
+        for (int f = 0; f < BM25_FIELDS.length; f++) {
+            extractField(f, terms, n, firstRow);
+        }
+    }
+
+    private void extractField(int f, BytesRef[] terms, int n, int firstRow) throws IOException {
+        String field = BM25_FIELDS[f];
+        boolean body = field.equals(BODY);
+        float[] bm25 = values[FIRST_BM25 + f];
+        for (int i = 0; i < n; i++) bm25[firstRow + i] = 0f;
+        if (body) {
+            for (int i = 0; i < n; i++) {
+                values[PROXIMITY][firstRow + i] = 0f;
+                values[DOC_LENGTH][firstRow + i] = 0f;
+            }
+        }
+
+        CollectionStatistics fieldStats = searcher.collectionStatistics(field);
+        if (fieldStats == null) return;
+        int nterms = terms.length;
+        for (int t = 0; t < nterms; t++) {
+            Term term = new Term(field, terms[t]);
+            TermStates ts = TermStates.build(searcher, term, true);
+            states[t] = ts.docFreq() == 0 ? null : ts;
+            scorers[t] = ts.docFreq() == 0 ? null
+                    : BM25.scorer(1f, fieldStats, searcher.termStatistics(term, ts.docFreq(), ts.totalTermFreq()));
+        }
+
+        int i = 0;
+        for (LeafReaderContext ctx : leaves) {
+            int leafEnd = ctx.docBase + ctx.reader().maxDoc();
+            if (i == n || (int) (order[i] >>> 32) >= leafEnd) continue;
+
+            Terms fieldTerms = ctx.reader().terms(field);
+            NumericDocValues norms = ctx.reader().getNormValues(field);
+            TermsEnum te = fieldTerms == null ? null : fieldTerms.iterator();
+            for (int t = 0; t < nterms; t++) {
+                IOSupplier<TermState> supplier = states[t] == null || te == null ? null : states[t].get(ctx);
+                TermState state = supplier == null ? null : supplier.get();
+                if (state == null) {
+                    postings[t] = null;
+                    continue;
+                }
+                te.seekExact(terms[t], state);
+                postings[t] = te.postings(postings[t], body ? PostingsEnum.POSITIONS : PostingsEnum.FREQS);
+            }
+
+            for (; i < n && (int) (order[i] >>> 32) < leafEnd; i++) {
+                int doc = (int) (order[i] >>> 32) - ctx.docBase;
+                int row = firstRow + (int) order[i];
+                long norm = norms != null && norms.advanceExact(doc) ? norms.longValue() : 1L;
+                float score = 0f;
+                int npos = 0;
+                for (int t = 0; t < nterms; t++) {
+                    PostingsEnum pe = postings[t];
+                    if (pe == null) continue;
+                    if (pe.docID() < doc) pe.advance(doc);
+                    if (pe.docID() != doc) continue;
+                    int freq = pe.freq();
+                    score += scorers[t].score(freq, norm);
+                    if (body) {
+                        if (positions.length < npos + freq) {
+                            positions = Arrays.copyOf(positions, Math.max(npos + freq, positions.length * 2));
+                        }
+                        for (int p = 0; p < freq; p++) positions[npos++] = (long) pe.nextPosition() << 16 | t;
+                    }
+                }
+                bm25[row] = score;
+                if (body) {
+                    values[PROXIMITY][row] = proximity(npos);
+                    values[DOC_LENGTH][row] = (float) Math.log1p(SmallFloat.byte4ToInt((byte) norm));
+                }
+            }
+        }
+    }
+
+    // Over positions sorted by position, the closest pair of different terms
+    // is always adjacent, so one pass finds it
+    private float proximity(int npos) {
+        Arrays.sort(positions, 0, npos);
+        long best = Long.MAX_VALUE;
+        for (int p = 1; p < npos; p++) {
+            if ((positions[p] & 0xFFFF) == (positions[p - 1] & 0xFFFF)) continue;
+            best = Math.min(best, (positions[p] >>> 16) - (positions[p - 1] >>> 16));
+        }
+        return best == Long.MAX_VALUE ? 0f : 1f / Math.max(1L, best);
+    }
+
+    // Distinct term texts of the query, in first-seen order; built once per
+    // query and shared by every field and segment
+    private static BytesRef[] queryTerms(Query query) {
+        Set<BytesRef> texts = new LinkedHashSet<>();
+        query.visit(new QueryVisitor() {
+            @Override
+            public void consumeTerms(Query q, Term... terms) {
+                for (Term term : terms) texts.add(term.bytes());
+            }
+
+            @Override
+            public QueryVisitor getSubVisitor(BooleanClause.Occur occur, Query parent) {
+                return occur == BooleanClause.Occur.MUST_NOT ? QueryVisitor.EMPTY_VISITOR : this;
+            }
+        });
+        return texts.toArray(new BytesRef[0]);
+    }
+}
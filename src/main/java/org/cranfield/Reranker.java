@@ -0,0 +1,38 @@
+package org.cranfield;
+
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.Map;
+
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.ScoreDoc;
+
+// -----------------------------
+// Second-stage reranking of each query's first-stage top-K, read from the
+// command line:
+//   --rerank FILE      rescore the hits with the linear model in FILE
+//                      (see LinearReranker for the format)
+//   --rerank-depth N   rerank only the top N hits of each query (default: all
+//                      TOP_K); hits below N keep their order, after the
+//                      reranked ones. Bounds the per-query cost.
+// A reranker sees every query of a combination at once, so it can extract
+// and score the whole batch together.
+// -----------------------------
+interface Reranker {
+
+    // Reorders rankings[i] in place into the reranked hits of queries[i],
+    // rewriting their scores, so the caller must own the ScoreDocs; records
+    // the per-query cost in the RERANK stage when metrics is not null
+    void rerank(IndexReader reader, Query[] queries, ScoreDoc[][] rankings, QueryMetrics metrics) throws IOException;
+
+    String describe();
+
+    // null unless --rerank is given
+    static Reranker fromArgs(Map<String, String> amap) throws IOException {
+        if (!amap.containsKey("rerank")) return null;
+        int depth = Integer.parseInt(amap.getOrDefault("rerank-depth", String.valueOf(Integer.MAX_VALUE)));
+        if (depth < 1) throw new IllegalArgumentException("--rerank-depth must be >= 1: " + depth);
+        return LinearReranker.load(Paths.get(amap.get("rerank")), depth);
+    }
+}
@@ -0,0 +1,334 @@
+package org.cranfield;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.apache.lucene.index.*;
+import org.apache.lucene.search.*;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.store.FilterDirectory;
+
+// -----------------------------
+// Top-K results of first-pass searches, kept across runs, read from the
+// command line:
+//   --result-cache [N]      cache results; N entries in the memory tier (default 10000)
+//   --result-cache-dir DIR  disk tier location (default result_cache)
+//
+// A key is the SHA-256 of the index state (commit generation plus every
+// segment's ID and deletes/updates generations), the similarity's toString
+// (k1, b, mu ...), the analyzer, the query as searched (parsed, and pruned
+// when --prune-df is on) in its toString form, K and the hit-count
+// threshold. Docids are only meaningful for those exact segments, which the
+// key pins. A value is the top-K (docid, score) arrays and the total hit
+// count.
+//
+// Memory tier: LRU over entries. Disk tier: for indexes in a filesystem
+// directory, one append-only file per index state, named after the index
+// directory; a new commit changes the state, so its results go to a new file
+// and the files of earlier states of that index are closed and deleted when
+// it is first searched. A reader's state and disk file are looked up on its
+// first search and forgotten when it closes; a reader still open on a state
+// whose file was dropped keeps to the memory tier. Disk hits are promoted to
+// memory. The memory tier keeps its own copy of each entry and hands out
+// copies, as later stages (a reranker) may rewrite the hits they are given.
+// In-memory indexes (--store memory) get new segment IDs every run and use
+// the memory tier only.
+// Thread-safe.
+// -----------------------------
+class ResultCache implements Closeable {
+
+    interface Search {
+        TopDocs search() throws IOException;
+    }
+
+    // Top-K of one query, and whether the cache had it (no search ran)
+    record Result(TopDocs top, boolean cached) {}
+
+    private static final int MAGIC = 0x43524352; // "RCRC" little-endian
+    private static final int VERSION = 1;
+    private static final int KEY_BYTES = 32;
+    private static final String SUFFIX = ".results";
+
+    private final int capacity;
+    private final Path dir;
+    private final LinkedHashMap<String, TopDocs> memory;
+    // A reader's index state and its disk file (null: memory tier only)
+    private record ReaderState(String state, DiskTier tier) {}
+
+    // by reader, until it closes
+    private final Map<IndexReader.CacheKey, ReaderState> readers = new ConcurrentHashMap<>();
+    // the current state's file per index directory, by file name; guarded by itself
+    private final Map<String, DiskTier> disk = new HashMap<>();
+
+    private final LongAdder memoryHits = new LongAdder();
+    private final LongAdder diskHits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private final LongAdder written = new LongAdder();
+    private final LongAdder invalidated = new LongAdder();
+
+    private ResultCache(int capacity, Path dir) {
+        if (capacity < 1) throw new IllegalArgumentException("--result-cache must be >= 1");
+        this.capacity = capacity;
+        this.dir = dir;
+        this.memory = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, TopDocs> eldest) {
+                if (size() <= ResultCache.this.capacity) return false;
+                evictions.increment();
+                return true;
+            }
+        };
+    }
+
+    // null unless --result-cache is given
+    static ResultCache fromArgs(Map<String, String> amap) {
+        if (!amap.containsKey("result-cache")) return null;
+        String size = amap.get("result-cache");
+        return new ResultCache(size.equals("true") ? 10000 : Integer.parseInt(size),
+                Paths.get(amap.getOrDefault("result-cache-dir", "result_cache")));
+    }
+
+    // The cached top K of query on this searcher, or search's result, cached
+    Result search(IndexSearcher searcher, String analyzer, Query query, int k, int totalHitsThreshold,
+                  Search search) throws IOException {
+        IndexReader reader = searcher.getIndexReader();
+        IndexReader.CacheHelper helper = reader.getReaderCacheHelper();
+        if (!(reader instanceof DirectoryReader) || helper == null) return new Result(search.search(), false);
+        ReaderState readerState = readers.get(helper.getKey());
+        if (readerState == null) readerState = register((DirectoryReader) reader, helper);
+        String key = sha256Hex(readerState.state() + '\n' + searcher.getSimilarity() + '\n' + analyzer + '\n'
+                + k + '\n' + totalHitsThreshold + '\n' + query);
+
+        TopDocs top;
+        synchronized (memory) {
+            top = memory.get(key);
+        }
+        if (top != null) {
+            memoryHits.increment();
+            return new Result(copy(top), true);
+        }
+        DiskTier tier = readerState.tier();
+        top = tier == null ? null : tier.get(key);
+        boolean cached = top != null;
+        if (cached) {
+            diskHits.increment();
+        } else {
+            misses.increment();
+            top = search.search();
+            if (tier != null && tier.put(key, top)) written.increment();
+        }
+        synchronized (memory) {
+            memory.put(key, copy(top));
+        }
+        return new Result(top, cached);
+    }
+
+    private static TopDocs copy(TopDocs top) {
+        ScoreDoc[] hits = new ScoreDoc[top.scoreDocs.length];
+        for (int i = 0; i < hits.length; i++) hits[i] = new ScoreDoc(top.scoreDocs[i].doc, top.scoreDocs[i].score);
+        return new TopDocs(top.totalHits, hits);
+    }
+
+    // Commit generation and, per segment, its ID and the generations of
+    // deletes, field infos and doc values updates
+    private static String indexState(DirectoryReader reader) {
+        StringBuilder sb = new StringBuilder();
+        try {
+            sb.append(reader.getIndexCommit().getGeneration());
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        for (LeafReaderContext ctx : reader.leaves()) {
+            if (!(FilterLeafReader.unwrap(ctx.reader()) instanceof SegmentReader segment)) {
+                throw new IllegalStateException("not a segment reader: " + ctx.reader());
+            }
+            SegmentCommitInfo info = segment.getSegmentInfo();
+            sb.append(';').append(HexFormat.of().formatHex(info.info.getId()))
+                    .append(',').append(info.getDelGen())
+                    .append(',').append(info.getFieldInfosGen())
+                    .append(',').append(info.getDocValuesGen());
+        }
+        return sha256Hex(sb.toString());
+    }
+
+    // A reader's first search: its state and disk file, dropped again when it closes
+    private ReaderState register(DirectoryReader reader, IndexReader.CacheHelper helper) throws IOException {
+        String state = indexState(reader);
+        ReaderState readerState = new ReaderState(state, diskTier(reader, state));
+        ReaderState registered = readers.putIfAbsent(helper.getKey(), readerState);
+        if (registered != null) return registered;
+        helper.addClosedListener(readers::remove);
+        return readerState;
+    }
+
+    // The disk file for this index state. The first time a state is seen, the
+    // files of the index directory's earlier states are closed and deleted
+    private DiskTier diskTier(DirectoryReader reader, String state) throws IOException {
+        Directory directory = FilterDirectory.unwrap(reader.directory());
+        if (!(directory instanceof FSDirectory fs)) return null;
+        String index = fs.getDirectory().getFileName().toString();
+        String name = index + "-" + state;
+        synchronized (disk) {
+            DiskTier tier = disk.get(name);
+            if (tier != null) return tier;
+            for (Iterator<Map.Entry<String, DiskTier>> it = disk.entrySet().iterator(); it.hasNext(); ) {
+                Map.Entry<String, DiskTier> stale = it.next();
+                if (stale.getKey().startsWith(index + "-")) {
+                    stale.getValue().close();
+                    it.remove();
+                }
+            }
+            Files.createDirectories(dir);
+            try (DirectoryStream<Path> stale = Files.newDirectoryStream(dir, index + "-*" + SUFFIX)) {
+                for (Path file : stale) {
+                    if (!file.getFileName().toString().equals(name + SUFFIX)) {
+                        Files.delete(file);
+                        invalidated.increment();
+                    }
+                }
+            }
+            tier = new DiskTier(dir.resolve(name + SUFFIX));
+            disk.put(name, tier);
+            return tier;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        synchronized (disk) {
+            for (DiskTier tier : disk.values()) tier.close();
+            disk.clear();
+        }
+    }
+
+    String stats() {
+        long hits = memoryHits.sum() + diskHits.sum();
+        long total = hits + misses.sum();
+        double rate = total == 0 ? 0.0 : (double) hits / total;
+        int size;
+        synchronized (memory) {
+            size = memory.size();
+        }
+        return String.format("memory hits = %d | disk hits = %d | misses = %d | hit rate = %.1f%%"
+                        + " | evictions = %d | size = %d/%d | written to disk = %d | stale files dropped = %d",
+                memoryHits.sum(), diskHits.sum(), misses.sum(), 100.0 * rate, evictions.sum(), size, capacity,
+                written.sum(), invalidated.sum());
+    }
+
+    private static String sha256Hex(String s) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            return HexFormat.of().formatHex(digest.digest(s.getBytes(StandardCharsets.UTF_8)));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 not available", e);
+        }
+    }
+
+    // -----------------------------
+    // One index state's results on disk, little-endian:
+    //   header  magic "RCRC", version
+    //   record  key (32 bytes of SHA-256), n, total hits, relation (0: exact,
+    //           1: lower bound), docs int[n], scores float[n]
+    // Records are appended as results are computed; opening scans them into
+    // a key -> offset table and values are read on demand. A torn record at
+    // the end (interrupted run) is cut off. Once closed (its state dropped)
+    // it holds nothing and takes nothing.
+    // -----------------------------
+    private static class DiskTier implements Closeable {
+        private static final int HEADER = 8;
+        private static final int RECORD_HEADER = KEY_BYTES + Integer.BYTES + Long.BYTES + 1;
+
+        private final FileChannel channel;
+        private final Map<String, Long> offsets = new HashMap<>();
+        private long end;
+
+        DiskTier(Path file) throws IOException {
+            channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                    StandardOpenOption.WRITE);
+            long size = channel.size();
+            ByteBuffer header = ByteBuffer.allocate(HEADER).order(ByteOrder.LITTLE_ENDIAN);
+            if (size >= HEADER && channel.read(header, 0) == HEADER
+                    && header.getInt(0) == MAGIC && header.getInt(4) == VERSION) {
+                scan(size);
+            } else {
+                channel.truncate(0);
+                header.clear();
+                header.putInt(MAGIC).putInt(VERSION).flip();
+                channel.write(header, 0);
+                end = HEADER;
+            }
+        }
+
+        private void scan(long size) throws IOException {
+            long pos = HEADER;
+            ByteBuffer head = ByteBuffer.allocate(RECORD_HEADER).order(ByteOrder.LITTLE_ENDIAN);
+            while (pos + RECORD_HEADER <= size) {
+                head.clear();
+                if (channel.read(head, pos) < RECORD_HEADER) break;
+                byte[] key = new byte[KEY_BYTES];
+                head.get(0, key);
+                int n = head.getInt(KEY_BYTES);
+                long next = pos + RECORD_HEADER + (long) n * (Integer.BYTES + Float.BYTES);
+                if (n < 0 || next > size) break;
+                offsets.put(HexFormat.of().formatHex(key), pos);
+                pos = next;
+            }
+            if (pos < size) channel.truncate(pos);
+            end = pos;
+        }
+
+        synchronized TopDocs get(String key) throws IOException {
+            if (!channel.isOpen()) return null;
+            Long pos = offsets.get(key);
+            if (pos == null) return null;
+            ByteBuffer head = ByteBuffer.allocate(RECORD_HEADER).order(ByteOrder.LITTLE_ENDIAN);
+            channel.read(head, pos);
+            int n = head.getInt(KEY_BYTES);
+            long totalHits = head.getLong(KEY_BYTES + Integer.BYTES);
+            TotalHits.Relation relation = head.get(KEY_BYTES + Integer.BYTES + Long.BYTES) == 0
+                    ? TotalHits.Relation.EQUAL_TO : TotalHits.Relation.GREATER_THAN_OR_EQUAL_TO;
+            ByteBuffer columns = ByteBuffer.allocate(n * (Integer.BYTES + Float.BYTES)).order(ByteOrder.LITTLE_ENDIAN);
+            channel.read(columns, pos + RECORD_HEADER);
+            ScoreDoc[] hits = new ScoreDoc[n];
+            for (int i = 0; i < n; i++) {
+                hits[i] = new ScoreDoc(columns.getInt(i * Integer.BYTES), columns.getFloat((n + i) * Float.BYTES));
+            }
+            return new TopDocs(new TotalHits(totalHits, relation), hits);
+        }
+
+        // false when the record was already there or the tier is closed
+        synchronized boolean put(String key, TopDocs top) throws IOException {
+            if (!channel.isOpen() || offsets.containsKey(key)) return false;
+            ScoreDoc[] hits = top.scoreDocs;
+            int n = hits.length;
+            ByteBuffer record = ByteBuffer.allocate(RECORD_HEADER + n * (Integer.BYTES + Float.BYTES))
+                    .order(ByteOrder.LITTLE_ENDIAN);
+            record.put(HexFormat.of().parseHex(key)).putInt(n).putLong(top.totalHits.value())
+                    .put((byte) (top.totalHits.relation() == TotalHits.Relation.EQUAL_TO ? 0 : 1));
+            for (ScoreDoc hit : hits) record.putInt(hit.doc);
+            for (ScoreDoc hit : hits) record.putFloat(hit.score);
+            record.flip();
+            long pos = end;
+            while (record.hasRemaining()) end += channel.write(record, end);
+            offsets.put(key, pos);
+            return true;
+        }
+
+        @Override
+        public synchronized void close() throws IOException {
+            offsets.clear();
+            channel.close();
+        }
+    }
+}
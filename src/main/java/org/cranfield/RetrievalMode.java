@@ -0,0 +1,106 @@
+package org.cranfield;
+
+import java.io.IOException;
+import java.util.Map;
+
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.search.*;
+
+// -----------------------------
+// How top-K retrieval trades exactness of the hit count and of the query
+// for speed, read from the command line:
+//   --fast-retrieval   stop counting hits once K are collected, so block-max
+//                      WAND / MaxScore can skip postings right away (Lucene's
+//                      default keeps counting up to 1000 hits first). The top K
+//                      are unchanged; only TotalHits becomes a lower bound.
+//   --prune-df R       drop query terms found in more than a fraction R of the
+//                      documents (low idf) before searching; a query that would
+//                      lose every term is left as it is. This changes rankings.
+// Either option makes each combination also run exhaustively (every hit
+// counted, no pruning) and report the speedup and the MAP/recall delta.
+// -----------------------------
+class RetrievalMode {
+
+    private static final int LUCENE_DEFAULT_THRESHOLD = 1000;
+
+    static final RetrievalMode DEFAULT = new RetrievalMode(LUCENE_DEFAULT_THRESHOLD, 1.0);
+    static final RetrievalMode EXHAUSTIVE = new RetrievalMode(Integer.MAX_VALUE, 1.0);
+
+    final int totalHitsThreshold;
+    final double maxDocFreqRatio;
+
+    private RetrievalMode(int totalHitsThreshold, double maxDocFreqRatio) {
+        if (maxDocFreqRatio <= 0 || maxDocFreqRatio > 1) {
+            throw new IllegalArgumentException("--prune-df must be in (0, 1]: " + maxDocFreqRatio);
+        }
+        this.totalHitsThreshold = totalHitsThreshold;
+        this.maxDocFreqRatio = maxDocFreqRatio;
+    }
+
+    static RetrievalMode fromArgs(Map<String, String> amap, int topK) {
+        boolean fast = amap.containsKey("fast-retrieval");
+        double ratio = Double.parseDouble(amap.getOrDefault("prune-df", "1.0"));
+        if (!fast && ratio >= 1.0) return DEFAULT;
+        return new RetrievalMode(fast ? topK : LUCENE_DEFAULT_THRESHOLD, ratio);
+    }
+
+    // Anything other than Lucene's default is compared against an exhaustive run
+    boolean compareExhaustive() {
+        return this != DEFAULT && this != EXHAUSTIVE;
+    }
+
+    boolean prunes() {
+        return maxDocFreqRatio < 1.0;
+    }
+
+    String describe() {
+        return String.format("hit-count threshold %s, prune-df %s",
+                totalHitsThreshold == Integer.MAX_VALUE ? "none" : String.valueOf(totalHitsThreshold),
+                prunes() ? String.valueOf(maxDocFreqRatio) : "off");
+    }
+
+    // Same as IndexSearcher.search(query, k) apart from the hit-count threshold
+    TopDocs search(IndexSearcher searcher, Query query, int k) throws IOException {
+        int numHits = Math.min(k, Math.max(1, searcher.getIndexReader().maxDoc()));
+        boolean supportsConcurrency = searcher.getSlices().length > 1;
+        return searcher.search(query,
+                new TopScoreDocCollectorManager(numHits, null, totalHitsThreshold, supportsConcurrency));
+    }
+
+    Query prune(IndexReader reader, Query query) throws IOException {
+        if (!prunes()) return query;
+        Query pruned = prune(reader, query, (long) (maxDocFreqRatio * reader.numDocs()));
+        return pruned == null ? query : pruned;
+    }
+
+    // null when nothing of the query survives
+    private static Query prune(IndexReader reader, Query query, long maxDocFreq) throws IOException {
+        if (query instanceof TermQuery tq) {
+            return reader.docFreq(tq.getTerm()) > maxDocFreq ? null : query;
+        }
+        if (query instanceof BoostQuery bq) {
+            Query inner = prune(reader, bq.getQuery(), maxDocFreq);
+            return inner == null ? null : new BoostQuery(inner, bq.getBoost());
+        }
+        if (query instanceof BooleanQuery bq) {
+            BooleanQuery.Builder builder = new BooleanQuery.Builder();
+            int kept = 0;
+            for (BooleanClause clause : bq.clauses()) {
+                if (clause.occur() != BooleanClause.Occur.SHOULD) {
+                    builder.add(clause);
+                    kept++;
+                    continue;
+                }
+                Query inner = prune(reader, clause.query(), maxDocFreq);
+                if (inner != null) {
+                    builder.add(inner, clause.occur());
+                    kept++;
+                }
+            }
+            if (kept == 0) return null;
+            builder.setMinimumNumberShouldMatch(Math.min(bq.getMinimumNumberShouldMatch(), kept));
+            return builder.build();
+        }
+        return query;
+    }
+}
@@ -0,0 +1,269 @@
+package org.cranfield;
+
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.apache.lucene.index.*;
+import org.apache.lucene.search.*;
+import org.apache.lucene.search.similarities.Similarity;
+import org.apache.lucene.util.BytesRef;
+
+// -----------------------------
+// RM3 pseudo-relevance feedback, read from the command line:
+//   --rm3               expand every query from its top feedback documents and
+//                       run the expanded query as a second pass
+//   --rm3-docs N        feedback documents per query (default 10)
+//   --rm3-terms N       expansion terms kept from the relevance model (default 10)
+//   --rm3-weight W      weight of the original query in the mix (default 0.5)
+//   --rm3-similarity S  take feedback documents from a search with S instead of
+//                       from the combination's first pass (see below)
+//   --rm3-cache N       feedback models and document models kept, LRU over N
+//                       entries each (default 4096)
+//
+// The relevance model is P(w|R) = sum over feedback docs d of P(d) * P(w|d),
+// with P(w|d) from the title/body term vectors stored at index time and P(d)
+// the feedback score normalized over the feedback documents. The top terms
+// are renormalized and interpolated with the original query's term
+// distribution; each term then searches title and body, boosted by its weight.
+//
+// By default the feedback documents are the top of the combination's own
+// first pass, so every similarity expands from its own ranking and no
+// extra search is run. Such a model is specific to one combination and is
+// not cached. With --rm3-similarity the feedback documents come from a
+// separate search with that one fixed similarity instead: the model of a
+// query then no longer depends on the combination, so it is built once per
+// (reader, query) and reused by every similarity swept over that index.
+// Per-document term distributions are cached either way, as feedback
+// documents repeat across queries and similarities. Thread-safe.
+// -----------------------------
+class Rm3Feedback {
+
+    // Expanded query, and whether it came from the model cache
+    record Expansion(Query query, boolean cached) {}
+
+    private record ModelKey(IndexReader.CacheKey reader, Query query) {}
+    private record DocKey(IndexReader.CacheKey reader, int doc) {}
+
+    private static final String[] FIELDS = Main.QUERY_FIELDS;
+
+    final int fbDocs;
+    final int fbTerms;
+    final float originalWeight;
+    // null: feedback from the combination's first pass
+    final String similarityName;
+    private final Similarity similarity;
+    private final int cacheCapacity;
+
+    private final Map<ModelKey, Query> models;
+    private final Map<DocKey, Map<String, Float>> docModels;
+    private final LongAdder modelsBuilt = new LongAdder();
+    private final LongAdder modelsReused = new LongAdder();
+    private final LongAdder docsLoaded = new LongAdder();
+    private final LongAdder docsReused = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    private Rm3Feedback(int fbDocs, int fbTerms, float originalWeight, String similarityName, Similarity similarity,
+                        int cacheCapacity) {
+        if (fbDocs < 1 || fbTerms < 1) {
+            throw new IllegalArgumentException("--rm3-docs and --rm3-terms must be >= 1");
+        }
+        if (originalWeight < 0 || originalWeight > 1) {
+            throw new IllegalArgumentException("--rm3-weight must be in [0, 1]: " + originalWeight);
+        }
+        if (similarityName != null && similarity == null) {
+            throw new IllegalArgumentException("unknown --rm3-similarity: " + similarityName);
+        }
+        if (cacheCapacity < 1) {
+            throw new IllegalArgumentException("--rm3-cache must be >= 1");
+        }
+        this.fbDocs = fbDocs;
+        this.fbTerms = fbTerms;
+        this.originalWeight = originalWeight;
+        this.similarityName = similarityName;
+        this.similarity = similarity;
+        this.cacheCapacity = cacheCapacity;
+        this.models = lru();
+        this.docModels = lru();
+    }
+
+    // null unless --rm3 is given
+    static Rm3Feedback fromArgs(Map<String, String> amap, Map<String, Similarity> similarities) {
+        if (!amap.containsKey("rm3")) return null;
+        String name = amap.get("rm3-similarity");
+        return new Rm3Feedback(Integer.parseInt(amap.getOrDefault("rm3-docs", "10")),
+                Integer.parseInt(amap.getOrDefault("rm3-terms", "10")),
+                Float.parseFloat(amap.getOrDefault("rm3-weight", "0.5")),
+                name, name == null ? null : similarities.get(name),
+                Integer.parseInt(amap.getOrDefault("rm3-cache", "4096")));
+    }
+
+    String describe() {
+        return String.format("%d docs, %d terms, original weight %.2f, feedback from %s",
+                fbDocs, fbTerms, originalWeight, similarityName == null ? "the first pass" : similarityName);
+    }
+
+    // firstPass: the combination's ranking for the query, read unless --rm3-similarity is set
+    Expansion expand(IndexReader reader, Query query, ScoreDoc[] firstPass) throws IOException {
+        if (similarity == null) {
+            modelsBuilt.increment();
+            return new Expansion(build(reader, query, Arrays.copyOf(firstPass, Math.min(fbDocs, firstPass.length))),
+                    false);
+        }
+        ModelKey key = new ModelKey(reader.getReaderCacheHelper().getKey(), query);
+        Query cached;
+        synchronized (models) {
+            cached = models.get(key);
+        }
+        if (cached != null) {
+            modelsReused.increment();
+            return new Expansion(cached, true);
+        }
+        // Two threads missing on the same query may both build it; the models are equal
+        IndexSearcher searcher = new IndexSearcher(reader);
+        searcher.setSimilarity(similarity);
+        Query expanded = build(reader, query, searcher.search(query, fbDocs).scoreDocs);
+        synchronized (models) {
+            models.put(key, expanded);
+        }
+        modelsBuilt.increment();
+        return new Expansion(expanded, false);
+    }
+
+    String stats() {
+        int models;
+        int docs;
+        synchronized (this.models) {
+            models = this.models.size();
+        }
+        synchronized (docModels) {
+            docs = docModels.size();
+        }
+        return String.format("models built %d, reused %d | doc vectors loaded %d, reused %d | cached %d models, %d docs (capacity %d each), evictions %d",
+                modelsBuilt.sum(), modelsReused.sum(), docsLoaded.sum(), docsReused.sum(), models, docs, cacheCapacity,
+                evictions.sum());
+    }
+
+    // Access-ordered map of at most cacheCapacity entries; callers synchronize on it
+    private <K, V> Map<K, V> lru() {
+        return new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<K, V> eldest) {
+                if (size() <= cacheCapacity) return false;
+                evictions.increment();
+                return true;
+            }
+        };
+    }
+
+    private Query build(IndexReader reader, Query query, ScoreDoc[] feedback) throws IOException {
+
+        // P(d): feedback scores normalized to sum to one
+        double scoreSum = 0;
+        for (ScoreDoc sd : feedback) scoreSum += sd.score;
+
+        Map<String, Double> relevance = new HashMap<>();
+        for (ScoreDoc sd : feedback) {
+            double docWeight = scoreSum > 0 ? sd.score / scoreSum : 1.0 / feedback.length;
+            for (Map.Entry<String, Float> e : docModel(reader, sd.doc).entrySet()) {
+                relevance.merge(e.getKey(), docWeight * e.getValue(), Double::sum);
+            }
+        }
+
+        // Top terms by weight (ties by term, so the model is deterministic), renormalized
+        List<Map.Entry<String, Double>> top = new ArrayList<>(relevance.entrySet());
+        top.sort(Map.Entry.<String, Double>comparingByValue().reversed().thenComparing(Map.Entry.comparingByKey()));
+        if (top.size() > fbTerms) top = top.subList(0, fbTerms);
+        double topSum = 0;
+        for (Map.Entry<String, Double> e : top) topSum += e.getValue();
+
+        Map<String, Double> mixed = new TreeMap<>();
+        for (Map.Entry<String, Double> e : originalModel(query).entrySet()) {
+            mixed.merge(e.getKey(), originalWeight * e.getValue(), Double::sum);
+        }
+        for (Map.Entry<String, Double> e : top) {
+            mixed.merge(e.getKey(), (1 - originalWeight) * e.getValue() / topSum, Double::sum);
+        }
+
+        BooleanQuery.Builder expanded = new BooleanQuery.Builder();
+        for (Map.Entry<String, Double> e : mixed.entrySet()) {
+            if (e.getValue() <= 0) continue;
+            BooleanQuery.Builder fields = new BooleanQuery.Builder();
+            for (String field : FIELDS) {
+                fields.add(new TermQuery(new Term(field, e.getKey())), BooleanClause.Occur.SHOULD);
+            }
+            expanded.add(new BoostQuery(fields.build(), e.getValue().floatValue()), BooleanClause.Occur.SHOULD);
+        }
+        return expanded.build();
+    }
+
+    // P(w|Q): how often each term occurs among the query's clauses
+    private static Map<String, Double> originalModel(Query query) {
+        Map<String, Double> counts = new HashMap<>();
+        query.visit(new QueryVisitor() {
+            @Override
+            public void consumeTerms(Query q, Term... terms) {
+                for (Term term : terms) counts.merge(term.text(), 1.0, Double::sum);
+            }
+
+            @Override
+            public QueryVisitor getSubVisitor(BooleanClause.Occur occur, Query parent) {
+                return occur == BooleanClause.Occur.MUST_NOT ? QueryVisitor.EMPTY_VISITOR : this;
+            }
+        });
+        double total = 0;
+        for (double c : counts.values()) total += c;
+        for (Map.Entry<String, Double> e : counts.entrySet()) e.setValue(e.getValue() / total);
+        return counts;
+    }
+
+    // P(w|d) over the document's title and body; only terms made of letters
+    // and digits are kept as candidates, but every token counts toward |d|
+    private Map<String, Float> docModel(IndexReader reader, int doc) throws IOException {
+        DocKey key = new DocKey(reader.getReaderCacheHelper().getKey(), doc);
+        Map<String, Float> cached;
+        synchronized (docModels) {
+            cached = docModels.get(key);
+        }
+        if (cached != null) {
+            docsReused.increment();
+            return cached;
+        }
+        // loaded outside the lock; two threads missing on the same document may both load it
+        Map<String, Float> model = loadDocModel(reader, doc);
+        synchronized (docModels) {
+            docModels.put(key, model);
+        }
+        docsLoaded.increment();
+        return model;
+    }
+
+    private static Map<String, Float> loadDocModel(IndexReader reader, int doc) throws IOException {
+        TermVectors vectors = reader.termVectors();
+        Map<String, Long> freqs = new HashMap<>();
+        long length = 0;
+        for (String field : FIELDS) {
+            Terms terms = vectors.get(doc, field);
+            if (terms == null) continue;
+            TermsEnum te = terms.iterator();
+            for (BytesRef text = te.next(); text != null; text = te.next()) {
+                long freq = te.totalTermFreq();
+                length += freq;
+                String term = text.utf8ToString();
+                if (isCandidate(term)) freqs.merge(term, freq, Long::sum);
+            }
+        }
+        Map<String, Float> model = new HashMap<>();
+        for (Map.Entry<String, Long> e : freqs.entrySet()) {
+            model.put(e.getKey(), (float) ((double) e.getValue() / length));
+        }
+        return model;
+    }
+
+    private static boolean isCandidate(String term) {
+        for (int i = 0; i < term.length(); i++) {
+            if (!Character.isLetterOrDigit(term.charAt(i))) return false;
+        }
+        return !term.isEmpty();
+    }
+}
@@ -0,0 +1,262 @@
+package org.cranfield;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import org.apache.lucene.search.ScoreDoc;
+
+// -----------------------------
+// Binary columnar run: one combination's rankings without any text.
+//
+//   header   magic "CRUN", version, flags (bit 0: columns deflated)
+//   tables   run tag, qids, and the docnos the run mentions (dictionary)
+//   offsets  int[queries + 1]: query q owns rows offsets[q] .. offsets[q+1]-1
+//   columns  docs int[rows] (docno dictionary index), scores float[rows]
+//
+// Everything is little-endian and the columns start 4-byte aligned, so an
+// uncompressed file is read by mapping it and viewing the columns as
+// IntBuffer / FloatBuffer, without copying or parsing. Compressed columns are
+// inflated into heap buffers instead. Rank is the position within a query.
+// A file cut short anywhere fails to read with "truncated run file".
+// -----------------------------
+class RunFile {
+
+    private static final int MAGIC = 0x4E555243; // "CRUN" little-endian
+    private static final int VERSION = 1;
+    private static final int FLAG_DEFLATED = 1;
+
+    final String runTag;
+    private final String[] qids;
+    private final String[] docnos;
+    private final int[] offsets;
+    private final IntBuffer docs;
+    private final FloatBuffer scores;
+
+    private RunFile(String runTag, String[] qids, String[] docnos, int[] offsets, IntBuffer docs, FloatBuffer scores) {
+        this.runTag = runTag;
+        this.qids = qids;
+        this.docnos = docnos;
+        this.offsets = offsets;
+        this.docs = docs;
+        this.scores = scores;
+    }
+
+    int queries() {
+        return qids.length;
+    }
+
+    String qid(int q) {
+        return qids[q];
+    }
+
+    int size(int q) {
+        return offsets[q + 1] - offsets[q];
+    }
+
+    String docno(int q, int rank) {
+        return docnos[docs.get(offsets[q] + rank)];
+    }
+
+    float score(int q, int rank) {
+        return scores.get(offsets[q] + rank);
+    }
+
+    // -----------------------------
+    // Reading
+    // -----------------------------
+    static RunFile read(Path file) throws IOException {
+        ByteBuffer buf;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        try {
+            return parse(buf, file);
+        } catch (BufferUnderflowException | IndexOutOfBoundsException e) {
+            throw new IOException("truncated run file: " + file, e);
+        }
+    }
+
+    private static RunFile parse(ByteBuffer buf, Path file) throws IOException {
+        buf.order(ByteOrder.LITTLE_ENDIAN);
+        if (buf.remaining() < 12 || buf.getInt() != MAGIC) throw new IOException("not a run file: " + file);
+        int version = buf.getInt();
+        if (version != VERSION) throw new IOException("unsupported run file version " + version + ": " + file);
+        int flags = buf.getInt();
+
+        String runTag = readString(buf);
+        String[] qids = readStrings(buf);
+        String[] docnos = readStrings(buf);
+        align(buf);
+        int[] offsets = new int[qids.length + 1];
+        buf.asIntBuffer().get(offsets);
+        buf.position(buf.position() + offsets.length * Integer.BYTES);
+        int rows = offsets[qids.length];
+
+        ByteBuffer columns;
+        if ((flags & FLAG_DEFLATED) != 0) {
+            int compressed = buf.getInt();
+            if (compressed < 0 || compressed > buf.remaining()) throw new IOException("truncated run file: " + file);
+            Inflater inflater = new Inflater();
+            try {
+                inflater.setInput(buf.slice(buf.position(), compressed));
+                columns = ByteBuffer.allocate(rows * (Integer.BYTES + Float.BYTES));
+                while (columns.hasRemaining() && !inflater.finished()) {
+                    // no output and nothing left to feed it: the stream ends early
+                    if (inflater.inflate(columns) == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                        throw new IOException("truncated run file: " + file);
+                    }
+                }
+                if (columns.hasRemaining()) throw new IOException("truncated run file: " + file);
+            } catch (DataFormatException e) {
+                throw new IOException("corrupt run file: " + file, e);
+            } finally {
+                inflater.end();
+            }
+            columns.flip();
+        } else {
+            align(buf);
+            columns = buf.slice();
+        }
+        columns.order(ByteOrder.LITTLE_ENDIAN);
+        IntBuffer docs = columns.slice(0, rows * Integer.BYTES).order(ByteOrder.LITTLE_ENDIAN).asIntBuffer();
+        FloatBuffer scores = columns.slice(rows * Integer.BYTES, rows * Float.BYTES)
+                .order(ByteOrder.LITTLE_ENDIAN).asFloatBuffer();
+        return new RunFile(runTag, qids, docnos, offsets, docs, scores);
+    }
+
+    private static String readString(ByteBuffer buf) {
+        byte[] bytes = new byte[buf.getInt()];
+        buf.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static String[] readStrings(ByteBuffer buf) {
+        String[] strings = new String[buf.getInt()];
+        for (int i = 0; i < strings.length; i++) strings[i] = readString(buf);
+        return strings;
+    }
+
+    private static void align(ByteBuffer buf) {
+        buf.position((buf.position() + 3) & ~3);
+    }
+
+    // -----------------------------
+    // TREC text export, only when asked for
+    // -----------------------------
+    void exportTrec(Path file) throws IOException {
+        try (BufferedWriter w = Files.newBufferedWriter(file, StandardCharsets.UTF_8)) {
+            StringBuilder line = new StringBuilder(64);
+            for (int q = 0; q < qids.length; q++) {
+                for (int rank = 0; rank < size(q); rank++) {
+                    line.setLength(0);
+                    Main.appendTrecLine(line, qids[q], docno(q, rank), rank + 1, score(q, rank), runTag);
+                    w.append(line);
+                }
+            }
+        }
+    }
+
+    // -----------------------------
+    // Writing: rankings are appended query by query into growing columns
+    // -----------------------------
+    static class Builder {
+        private final String runTag;
+        private final List<String> qids = new ArrayList<>();
+        private final Map<String, Integer> docnoIds = new HashMap<>();
+        private final List<String> docnos = new ArrayList<>();
+        private int[] offsets = new int[64];
+        private int[] docs = new int[1024];
+        private float[] scores = new float[1024];
+        private int rows;
+
+        Builder(String runTag) {
+            this.runTag = runTag;
+        }
+
+        void add(String qid, String[] hitDocnos, ScoreDoc[] hits) {
+            int n = hits.length;
+            if (qids.size() + 2 > offsets.length) offsets = Arrays.copyOf(offsets, offsets.length * 2);
+            if (rows + n > docs.length) {
+                int capacity = Math.max(rows + n, docs.length * 2);
+                docs = Arrays.copyOf(docs, capacity);
+                scores = Arrays.copyOf(scores, capacity);
+            }
+            for (int i = 0; i < n; i++) {
+                Integer id = docnoIds.get(hitDocnos[i]);
+                if (id == null) {
+                    id = docnos.size();
+                    docnoIds.put(hitDocnos[i], id);
+                    docnos.add(hitDocnos[i]);
+                }
+                docs[rows] = id;
+                scores[rows] = hits[i].score;
+                rows++;
+            }
+            qids.add(qid);
+            offsets[qids.size()] = rows;
+        }
+
+        void write(Path file, boolean compress) throws IOException {
+            ByteArrayOutputStream header = new ByteArrayOutputStream();
+            writeInt(header, MAGIC);
+            writeInt(header, VERSION);
+            writeInt(header, compress ? FLAG_DEFLATED : 0);
+            writeString(header, runTag);
+            writeInt(header, qids.size());
+            for (String qid : qids) writeString(header, qid);
+            writeInt(header, docnos.size());
+            for (String docno : docnos) writeString(header, docno);
+            while (header.size() % 4 != 0) header.write(0);
+            for (int q = 0; q <= qids.size(); q++) writeInt(header, offsets[q]);
+
+            ByteBuffer columns = ByteBuffer.allocate(rows * (Integer.BYTES + Float.BYTES)).order(ByteOrder.LITTLE_ENDIAN);
+            columns.asIntBuffer().put(docs, 0, rows);
+            columns.position(rows * Integer.BYTES);
+            columns.asFloatBuffer().put(scores, 0, rows);
+            columns.position(0);
+
+            try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(file))) {
+                header.writeTo(out);
+                if (compress) {
+                    Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+                    try {
+                        deflater.setInput(columns);
+                        deflater.finish();
+                        ByteArrayOutputStream packed = new ByteArrayOutputStream();
+                        byte[] chunk = new byte[8192];
+                        while (!deflater.finished()) packed.write(chunk, 0, deflater.deflate(chunk));
+                        ByteArrayOutputStream length = new ByteArrayOutputStream();
+                        writeInt(length, packed.size());
+                        length.writeTo(out);
+                        packed.writeTo(out);
+                    } finally {
+                        deflater.end();
+                    }
+                } else {
+                    // header is 4-byte aligned already
+                    out.write(columns.array(), 0, columns.capacity());
+                }
+            }
+        }
+
+        private static void writeInt(ByteArrayOutputStream out, int v) {
+            out.write(v);
+            out.write(v >>> 8);
+            out.write(v >>> 16);
+            out.write(v >>> 24);
+        }
+
+        private static void writeString(ByteArrayOutputStream out, String s) {
+            byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+            writeInt(out, bytes.length);
+            out.write(bytes, 0, bytes.length);
+        }
+    }
+}
@@ -0,0 +1,42 @@
+package org.cranfield;
+
+import java.util.Map;
+
+// -----------------------------
+// How each combination's run is written, read from the command line:
+//   --run-format F   "text" (default): a TREC run file, results_<combo>.txt
+//                    "binary": a RunFile, results_<combo>.run
+//   --run-compress   deflate the binary columns (read back into memory
+//                    instead of being mapped)
+//   --trec-export    with binary runs, also export each to TREC text
+// Stored runs are turned back into text or evaluated on their own with
+// --export-run FILE [--export-to OUT] and --eval-run FILE.
+// -----------------------------
+class RunFormat {
+
+    final boolean binary;
+    final boolean compress;
+    final boolean trecExport;
+
+    private RunFormat(String format, boolean compress, boolean trecExport) {
+        if (!format.equals("text") && !format.equals("binary")) {
+            throw new IllegalArgumentException("--run-format must be text or binary: " + format);
+        }
+        this.binary = format.equals("binary");
+        this.compress = compress;
+        this.trecExport = trecExport;
+    }
+
+    static RunFormat fromArgs(Map<String, String> amap) {
+        return new RunFormat(amap.getOrDefault("run-format", "text"), amap.containsKey("run-compress"),
+                amap.containsKey("trec-export"));
+    }
+
+    String runFile(String base) {
+        return base + (binary ? ".run" : ".txt");
+    }
+
+    static String textFile(String runFile) {
+        return (runFile.endsWith(".run") ? runFile.substring(0, runFile.length() - 4) : runFile) + ".txt";
+    }
+}
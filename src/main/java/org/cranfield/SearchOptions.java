@@ -0,0 +1,106 @@
+package org.cranfield;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.*;
+
+import org.apache.lucene.search.similarities.Similarity;
+
+// -----------------------------
+// How every combination searches and what it does with its first-pass
+// rankings, read from the command line once for the whole sweep:
+//   --query-threads N / --virtual-threads   run a combination's queries in parallel
+//   --query-cache N          compiled queries, LRU over N entries (default 4096, 0 disables)
+//   --result-cache ...       first-pass top-K kept across runs (see ResultCache)
+//   --fast-retrieval, --prune-df R           approximate top-K (see RetrievalMode)
+//   --field-mode M           how query terms meet title and body (see FieldMode)
+//   --slices N               concurrent segment scoring (see SearchSlicing)
+//   --rm3 ...                pseudo-relevance feedback second pass (see Rm3Feedback)
+//   --dense ...              fused kNN run; read with the indexing settings (see DenseRetrieval)
+//   --rerank FILE            second-stage linear reranker (see Reranker)
+//   --run-format ...         how runs are written (see RunFormat)
+// Optional parts are null when off; retrieval, fieldMode and runFormat
+// always have a value. DEFAULTS is plain top-K search over the multi-field
+// expansion with nothing else, as the benchmarks measure it.
+// -----------------------------
+class SearchOptions implements Closeable {
+
+    static final SearchOptions DEFAULTS = new SearchOptions(null, null, null, RetrievalMode.DEFAULT,
+            FieldMode.MULTI, null, null, null, null, RunFormat.fromArgs(Map.of()));
+
+    final ExecutorService executor;
+    final QueryCache queryCache;
+    final ResultCache resultCache;
+    final RetrievalMode retrieval;
+    final FieldMode fieldMode;
+    final SearchSlicing slicing;
+    final Rm3Feedback feedback;
+    final DenseRetrieval dense;
+    final Reranker reranker;
+    final RunFormat runFormat;
+
+    private SearchOptions(ExecutorService executor, QueryCache queryCache, ResultCache resultCache,
+                          RetrievalMode retrieval, FieldMode fieldMode, SearchSlicing slicing,
+                          Rm3Feedback feedback, DenseRetrieval dense, Reranker reranker, RunFormat runFormat) {
+        this.executor = executor;
+        this.queryCache = queryCache;
+        this.resultCache = resultCache;
+        this.retrieval = retrieval;
+        this.fieldMode = fieldMode;
+        this.slicing = slicing;
+        this.feedback = feedback;
+        this.dense = dense;
+        this.reranker = reranker;
+        this.runFormat = runFormat;
+    }
+
+    // dense comes from the indexing settings, which own the index side of it
+    static SearchOptions fromArgs(Map<String, String> amap, Map<String, Similarity> similarities, int topK,
+                                  DenseRetrieval dense) throws IOException {
+        int queryCacheSize = Integer.parseInt(amap.getOrDefault("query-cache", "4096"));
+        QueryCache queryCache = queryCacheSize > 0 ? new QueryCache(queryCacheSize) : null;
+        ResultCache resultCache = ResultCache.fromArgs(amap);
+        RetrievalMode retrieval = RetrievalMode.fromArgs(amap, topK);
+        FieldMode fieldMode = FieldMode.fromArgs(amap);
+        Rm3Feedback feedback = Rm3Feedback.fromArgs(amap, similarities);
+        Reranker reranker = Reranker.fromArgs(amap);
+        RunFormat runFormat = RunFormat.fromArgs(amap);
+        // the thread pools last, once every other option is valid
+        SearchSlicing slicing = SearchSlicing.fromArgs(amap);
+        ExecutorService executor;
+        try {
+            executor = executor(amap);
+        } catch (RuntimeException e) {
+            if (slicing != null) slicing.close();
+            throw e;
+        }
+        return new SearchOptions(executor, queryCache, resultCache, retrieval, fieldMode, slicing, feedback, dense,
+                reranker, runFormat);
+    }
+
+    // Without either option queries run sequentially on the calling thread
+    private static ExecutorService executor(Map<String, String> amap) {
+        if (amap.containsKey("virtual-threads")) {
+            return Executors.newVirtualThreadPerTaskExecutor();
+        }
+        int threads = Integer.parseInt(amap.getOrDefault("query-threads", "1"));
+        if (threads <= 1) return null;
+        return Executors.newFixedThreadPool(threads);
+    }
+
+    // The same options with another field mode (a similarity the mode cannot score)
+    SearchOptions withFieldMode(FieldMode mode) {
+        if (mode == fieldMode) return this;
+        return new SearchOptions(executor, queryCache, resultCache, retrieval, mode, slicing, feedback, dense,
+                reranker, runFormat);
+    }
+
+    // Stops the query threads and slice pool, flushes the result cache's disk tier
+    @Override
+    public void close() throws IOException {
+        if (executor != null) executor.shutdown();
+        if (slicing != null) slicing.close();
+        if (resultCache != null) resultCache.close();
+    }
+}
@@ -0,0 +1,282 @@
+package org.cranfield;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.*;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.queryparser.classic.MultiFieldQueryParser;
+import org.apache.lucene.queryparser.classic.ParseException;
+import org.apache.lucene.search.*;
+import org.apache.lucene.search.similarities.Similarity;
+import org.apache.lucene.store.Directory;
+
+// -----------------------------
+// Long-lived search service over the analyzer indexes (--serve PORT).
+// Each analyzer keeps one open reader with a warm IndexSearcher per
+// similarity and its docno lookup; a background task (and POST /refresh)
+// swaps in a new snapshot when the index changes, SearcherManager-style:
+// in-flight batches keep the snapshot they acquired until they release it.
+//
+//   POST /search?analyzer=A&similarity=S[&tag=T]
+//        body: one query per line, "qid<whitespace>query text"
+//        reply: top-K TREC run lines, in request order
+//   POST /refresh   reopen every reader whose index has changed
+//   GET  /stats     per-combination stage latencies (QueryMetrics JSON)
+//
+// Requests that name an unknown analyzer or similarity, or hold a query
+// that does not parse, get 400; a search that fails gets 500. Queries go
+// through the multi-field expansion with the query cache and retrieval
+// mode; the second-pass stages of a sweep (--rm3, --dense, --rerank),
+// --field-mode, --slices and --result-cache are refused with --serve.
+// Bound to the loopback interface only.
+// -----------------------------
+class SearchService implements Closeable {
+
+    // Content types of the replies: run lines and messages, /stats
+    private static final String TEXT = "text/plain; charset=utf-8";
+    private static final String JSON = "application/json";
+
+    // One point-in-time view of an analyzer's index
+    private record Snapshot(DirectoryReader reader, DocnoLookup docnos, Map<String, IndexSearcher> searchers) {}
+
+    private static final class SnapshotManager extends ReferenceManager<Snapshot> {
+        private final Map<String, Similarity> similarities;
+
+        SnapshotManager(Directory directory, Map<String, Similarity> similarities) throws IOException {
+            this.similarities = similarities;
+            this.current = snapshot(DirectoryReader.open(directory));
+        }
+
+        private Snapshot snapshot(DirectoryReader reader) throws IOException {
+            Map<String, IndexSearcher> searchers = new LinkedHashMap<>();
+            for (Map.Entry<String, Similarity> e : similarities.entrySet()) {
+                IndexSearcher searcher = new IndexSearcher(reader);
+                searcher.setSimilarity(e.getValue());
+                searchers.put(e.getKey(), searcher);
+            }
+            return new Snapshot(reader, DocnoLookup.load(reader), searchers);
+        }
+
+        @Override
+        protected void decRef(Snapshot reference) throws IOException {
+            reference.reader().decRef();
+        }
+
+        @Override
+        protected Snapshot refreshIfNeeded(Snapshot referenceToRefresh) throws IOException {
+            DirectoryReader newReader = DirectoryReader.openIfChanged(referenceToRefresh.reader());
+            if (newReader == null) return null;
+            try {
+                return snapshot(newReader);
+            } catch (IOException | RuntimeException e) {
+                newReader.decRef();
+                throw e;
+            }
+        }
+
+        @Override
+        protected boolean tryIncRef(Snapshot reference) {
+            return reference.reader().tryIncRef();
+        }
+
+        @Override
+        protected int getRefCount(Snapshot reference) {
+            return reference.reader().getRefCount();
+        }
+    }
+
+    private final Map<String, Analyzer> analyzers;
+    private final Map<String, SnapshotManager> managers = new LinkedHashMap<>();
+    private final Map<String, Directory> directories;
+    private final SearchOptions options;
+    private final Map<String, QueryMetrics> metrics = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService refresher = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "index-refresh");
+        t.setDaemon(true);
+        return t;
+    });
+    private HttpServer server;
+
+    SearchService(Map<String, Analyzer> analyzers, Map<String, Similarity> similarities,
+                  Map<String, Directory> directories, SearchOptions options) throws IOException {
+        this.analyzers = analyzers;
+        this.directories = directories;
+        this.options = options;
+        for (String name : analyzers.keySet()) {
+            managers.put(name, new SnapshotManager(directories.get(name), similarities));
+        }
+    }
+
+    // refreshMs <= 0 leaves refreshing to POST /refresh
+    void start(int port, ExecutorService executor, long refreshMs) throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", port), 0);
+        server.createContext("/search", this::handleSearch);
+        server.createContext("/refresh", this::handleRefresh);
+        server.createContext("/stats", this::handleStats);
+        server.setExecutor(executor);
+        server.start();
+        if (refreshMs > 0) {
+            refresher.scheduleWithFixedDelay(this::refreshQuietly, refreshMs, refreshMs, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    int port() {
+        return server.getAddress().getPort();
+    }
+
+    // -----------------------------
+    // Handlers
+    // -----------------------------
+    private void handleSearch(HttpExchange exchange) throws IOException {
+        try (exchange) {
+            if (!exchange.getRequestMethod().equals("POST")) {
+                reply(exchange, 405, TEXT, "use POST\n");
+                return;
+            }
+            Map<String, String> params = queryParams(exchange.getRequestURI().getRawQuery());
+            String analyzerName = params.getOrDefault("analyzer", "");
+            String simName = params.getOrDefault("similarity", "");
+            SnapshotManager manager = managers.get(analyzerName);
+            Analyzer analyzer = analyzers.get(analyzerName);
+            if (manager == null || analyzer == null) {
+                reply(exchange, 400, TEXT, "unknown analyzer: " + analyzerName + "\n");
+                return;
+            }
+            String comboTag = analyzerName + "_" + simName;
+            String runTag = params.getOrDefault("tag", comboTag);
+            String body = new String(exchange.getRequestBody().readAllBytes(), StandardCharsets.UTF_8);
+
+            // The run is complete before anything is sent, so a failed search still gets a status
+            String run;
+            Snapshot snapshot = manager.acquire();
+            try {
+                IndexSearcher searcher = snapshot.searchers().get(simName);
+                if (searcher == null) {
+                    reply(exchange, 400, TEXT, "unknown similarity: " + simName + "\n");
+                    return;
+                }
+                QueryMetrics m = metrics.computeIfAbsent(comboTag, k -> new QueryMetrics());
+                run = search(searcher, snapshot.docnos(), analyzer, body, runTag, m);
+            } catch (ParseException e) {
+                reply(exchange, 400, TEXT, "bad query: " + e.getMessage() + "\n");
+                return;
+            } catch (IOException | RuntimeException e) {
+                System.err.println("Search failed for " + comboTag + ": " + e);
+                reply(exchange, 500, TEXT, "search failed: " + e.getMessage() + "\n");
+                return;
+            } finally {
+                manager.release(snapshot);
+            }
+            reply(exchange, 200, TEXT, run);
+        }
+    }
+
+    private String search(IndexSearcher searcher, DocnoLookup docnos, Analyzer analyzer, String body,
+                          String runTag, QueryMetrics m) throws IOException, ParseException {
+        // MultiFieldQueryParser is not thread-safe: one per batch
+        MultiFieldQueryParser parser = new MultiFieldQueryParser(Main.QUERY_FIELDS, analyzer);
+        StringBuilder out = new StringBuilder();
+        for (String line : body.split("\n")) {
+            line = line.trim();
+            if (line.isEmpty()) continue;
+            String[] parts = line.split("\\s+", 2);
+            if (parts.length < 2) continue;
+            String qid = parts[0];
+
+            ScoreDoc[] hits = Main.searchQuery(searcher, parser, parts[1], options, m);
+            long start = System.nanoTime();
+            String[] hitDocnos = new String[hits.length];
+            for (int rank = 0; rank < hits.length; rank++) hitDocnos[rank] = docnos.docno(hits[rank].doc);
+            long resolved = System.nanoTime();
+            for (int rank = 0; rank < hits.length; rank++) {
+                out.append(Main.trecLine(qid, hitDocnos[rank], rank + 1, hits[rank].score, runTag));
+            }
+            m.time(QueryMetrics.Stage.RESOLVE, resolved - start);
+            m.time(QueryMetrics.Stage.WRITE, System.nanoTime() - resolved);
+        }
+        return out.toString();
+    }
+
+    private void handleRefresh(HttpExchange exchange) throws IOException {
+        try (exchange) {
+            if (!exchange.getRequestMethod().equals("POST")) {
+                reply(exchange, 405, TEXT, "use POST\n");
+                return;
+            }
+            StringBuilder out = new StringBuilder();
+            for (Map.Entry<String, SnapshotManager> e : managers.entrySet()) {
+                e.getValue().maybeRefreshBlocking();
+                Snapshot snapshot = e.getValue().acquire();
+                try {
+                    out.append(String.format("%s version=%d docs=%d\n", e.getKey(),
+                            snapshot.reader().getVersion(), snapshot.reader().numDocs()));
+                } finally {
+                    e.getValue().release(snapshot);
+                }
+            }
+            reply(exchange, 200, TEXT, out.toString());
+        }
+    }
+
+    private void handleStats(HttpExchange exchange) throws IOException {
+        try (exchange) {
+            List<String> combos = new ArrayList<>(metrics.keySet());
+            Collections.sort(combos);
+            StringBuilder out = new StringBuilder("[\n");
+            for (int i = 0; i < combos.size(); i++) {
+                out.append(metrics.get(combos.get(i)).toJson(combos.get(i)).stripTrailing());
+                out.append(i + 1 < combos.size() ? ",\n" : "\n");
+            }
+            out.append("]\n");
+            if (options.queryCache != null) {
+                exchange.getResponseHeaders().add("X-Query-Cache", options.queryCache.stats());
+            }
+            reply(exchange, 200, JSON, out.toString());
+        }
+    }
+
+    private void refreshQuietly() {
+        for (Map.Entry<String, SnapshotManager> e : managers.entrySet()) {
+            try {
+                e.getValue().maybeRefresh();
+            } catch (IOException ex) {
+                System.err.println("Refresh failed for " + e.getKey() + ": " + ex.getMessage());
+            }
+        }
+    }
+
+    private static void reply(HttpExchange exchange, int status, String contentType, String body)
+            throws IOException {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", contentType);
+        exchange.sendResponseHeaders(status, bytes.length);
+        exchange.getResponseBody().write(bytes);
+    }
+
+    private static Map<String, String> queryParams(String rawQuery) {
+        Map<String, String> params = new HashMap<>();
+        if (rawQuery == null) return params;
+        for (String pair : rawQuery.split("&")) {
+            int eq = pair.indexOf('=');
+            if (eq <= 0) continue;
+            params.put(URLDecoder.decode(pair.substring(0, eq), StandardCharsets.UTF_8),
+                    URLDecoder.decode(pair.substring(eq + 1), StandardCharsets.UTF_8));
+        }
+        return params;
+    }
+
+    @Override
+    public void close() throws IOException {
+        refresher.shutdownNow();
+        if (server != null) server.stop(1);
+        for (SnapshotManager manager : managers.values()) manager.close();
+        for (Directory directory : directories.values()) directory.close();
+    }
+}
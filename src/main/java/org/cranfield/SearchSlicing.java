@@ -0,0 +1,98 @@
+package org.cranfield;
+
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.search.IndexSearcher;
+
+// -----------------------------
+// Intra-query parallelism, read from the command line:
+//   --slices N           score each query's segments in N slices at once; the
+//                        per-slice top K are merged by IndexSearcher. Leaves
+//                        are grouped into N slices of about equal document
+//                        count (build the index with --segments for even ones)
+//   --search-threads T   threads scoring slices (default N)
+// With --slices each combination also reports search latency for 1, 2, 4 ...
+// slices up to the segment count, and whether rankings match the 1-slice run.
+// Slice tasks run on their own pool, never on the --query-threads executor:
+// a query task blocking on slices of the same pool could starve it.
+// -----------------------------
+class SearchSlicing {
+
+    final int slices;
+    final int threads;
+    private final ExecutorService executor;
+
+    private SearchSlicing(int slices, int threads) {
+        if (slices < 2) throw new IllegalArgumentException("--slices must be >= 2");
+        if (threads < 1) throw new IllegalArgumentException("--search-threads must be >= 1");
+        this.slices = slices;
+        this.threads = threads;
+        this.executor = Executors.newFixedThreadPool(threads);
+    }
+
+    // null without --slices: every searcher scores its segments sequentially
+    static SearchSlicing fromArgs(Map<String, String> amap) {
+        if (!amap.containsKey("slices")) return null;
+        int slices = Integer.parseInt(amap.get("slices"));
+        return new SearchSlicing(slices, Integer.parseInt(amap.getOrDefault("search-threads", String.valueOf(slices))));
+    }
+
+    IndexSearcher newSearcher(IndexReader reader) {
+        return newSearcher(reader, slices);
+    }
+
+    // With one slice (or one segment) no executor is involved at all
+    IndexSearcher newSearcher(IndexReader reader, int sliceCount) {
+        if (sliceCount <= 1 || reader.leaves().size() <= 1) return new IndexSearcher(reader);
+        return new IndexSearcher(reader, executor) {
+            @Override
+            protected LeafSlice[] slices(List<LeafReaderContext> leaves) {
+                return balance(leaves, sliceCount);
+            }
+        };
+    }
+
+    // Largest leaf first onto the slice with the fewest documents so far
+    static IndexSearcher.LeafSlice[] balance(List<LeafReaderContext> leaves, int sliceCount) {
+        int n = Math.min(sliceCount, leaves.size());
+        List<LeafReaderContext> bySize = new ArrayList<>(leaves);
+        bySize.sort((a, b) -> Integer.compare(b.reader().maxDoc(), a.reader().maxDoc()));
+        List<List<IndexSearcher.LeafReaderContextPartition>> groups = new ArrayList<>(n);
+        long[] docs = new long[n];
+        for (int s = 0; s < n; s++) groups.add(new ArrayList<>());
+        for (LeafReaderContext ctx : bySize) {
+            int lightest = 0;
+            for (int s = 1; s < n; s++) {
+                if (docs[s] < docs[lightest]) lightest = s;
+            }
+            groups.get(lightest).add(IndexSearcher.LeafReaderContextPartition.createForEntireSegment(ctx));
+            docs[lightest] += ctx.reader().maxDoc();
+        }
+        IndexSearcher.LeafSlice[] result = new IndexSearcher.LeafSlice[n];
+        // LeafSlice puts each group back in docid order
+        for (int s = 0; s < n; s++) result[s] = new IndexSearcher.LeafSlice(groups.get(s));
+        return result;
+    }
+
+    // 1, 2, 4 ... up to the segment count, plus the configured slice count
+    List<Integer> scalingSteps(IndexReader reader) {
+        int leaves = reader.leaves().size();
+        TreeSet<Integer> steps = new TreeSet<>();
+        for (int s = 1; s < leaves; s *= 2) steps.add(s);
+        steps.add(Math.max(1, leaves));
+        steps.add(Math.min(slices, Math.max(1, leaves)));
+        return new ArrayList<>(steps);
+    }
+
+    String describe() {
+        return slices + " slices on " + threads + " search thread(s)";
+    }
+
+    void close() {
+        executor.shutdown();
+    }
+}
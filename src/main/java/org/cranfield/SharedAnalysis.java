@@ -0,0 +1,337 @@
+package org.cranfield;
+
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.function.UnaryOperator;
+
+import org.apache.lucene.analysis.*;
+import org.apache.lucene.analysis.en.EnglishAnalyzer;
+import org.apache.lucene.analysis.en.EnglishPossessiveFilter;
+import org.apache.lucene.analysis.en.PorterStemFilter;
+import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.apache.lucene.analysis.standard.StandardTokenizer;
+import org.apache.lucene.analysis.tokenattributes.*;
+import org.apache.lucene.index.IndexWriter;
+
+// -----------------------------
+// One analysis pass for several analyzer indexes (--shared-analysis).
+//
+// StandardAnalyzer and EnglishAnalyzer both start with a StandardTokenizer
+// (default max token length) and lowercasing. EnglishAnalyzer strips
+// possessives before it lowercases, which gives the same tokens as after:
+// the filter matches 's and 'S alike. Each field value goes through that
+// shared prefix once and its tokens are captured; every index replays them
+// through its own tail:
+//   standard   StopFilter over its stopword set (none when it is empty, the
+//              default)
+//   english    EnglishPossessiveFilter, StopFilter (English stopwords),
+//              PorterStemFilter; the default EnglishAnalyzer, without stem
+//              exclusions
+// A document's four distinct field texts cost four prefix runs for all the
+// indexes together, where independent builds run the full chain on every
+// field of every index; when the content field is indexed its two values
+// repeat title and body and cost no prefix run of their own. Replayed
+// tokens are handed to the writer through BulkIndexer.AnalyzedField, so
+// stored values, term vectors and the document layout are those of a regular
+// build. Analyzers without the shared prefix (whitespace) are built alone.
+// --compare-analysis times analysis alone both ways after the build.
+// -----------------------------
+class SharedAnalysis {
+
+    private static final int MEASURED_ROUNDS = 5;
+
+    // The analyzer's chain after the shared prefix, or null when it has no such prefix
+    static UnaryOperator<TokenStream> tail(Analyzer analyzer) {
+        if (analyzer.getClass() == StandardAnalyzer.class) {
+            CharArraySet stopwords = ((StandardAnalyzer) analyzer).getStopwordSet();
+            return in -> stopwords.isEmpty() ? in : new StopFilter(in, stopwords);
+        }
+        if (analyzer.getClass() == EnglishAnalyzer.class) {
+            CharArraySet stopwords = ((EnglishAnalyzer) analyzer).getStopwordSet();
+            return in -> new PorterStemFilter(new StopFilter(new EnglishPossessiveFilter(in), stopwords));
+        }
+        return null;
+    }
+
+    // -----------------------------
+    // Prefix tokens of one text: term text, position increment, offsets and
+    // type per token, plus what end() reports. Replayable any number of times.
+    // -----------------------------
+    static class Captured {
+        private char[] chars = new char[256];
+        private int[] termEnds = new int[32];
+        private int[] posIncs = new int[32];
+        private int[] starts = new int[32];
+        private int[] ends = new int[32];
+        private String[] types = new String[32];
+        private int size;
+        private int finalOffset;
+        private int finalPosInc;
+
+        private void add(CharTermAttribute term, int posInc, int start, int end, String type) {
+            int from = size == 0 ? 0 : termEnds[size - 1];
+            if (from + term.length() > chars.length) {
+                chars = Arrays.copyOf(chars, Math.max(chars.length * 2, from + term.length()));
+            }
+            System.arraycopy(term.buffer(), 0, chars, from, term.length());
+            if (size == termEnds.length) {
+                int capacity = size * 2;
+                termEnds = Arrays.copyOf(termEnds, capacity);
+                posIncs = Arrays.copyOf(posIncs, capacity);
+                starts = Arrays.copyOf(starts, capacity);
+                ends = Arrays.copyOf(ends, capacity);
+                types = Arrays.copyOf(types, capacity);
+            }
+            termEnds[size] = from + term.length();
+            posIncs[size] = posInc;
+            starts[size] = start;
+            ends[size] = end;
+            types[size] = type;
+            size++;
+        }
+    }
+
+    // Plays a Captured back; reused for every text it is given
+    static final class Replay extends TokenStream {
+        private final CharTermAttribute term = addAttribute(CharTermAttribute.class);
+        private final PositionIncrementAttribute posInc = addAttribute(PositionIncrementAttribute.class);
+        private final OffsetAttribute offset = addAttribute(OffsetAttribute.class);
+        private final TypeAttribute type = addAttribute(TypeAttribute.class);
+        private Captured tokens;
+        private int next;
+
+        void setTokens(Captured tokens) {
+            this.tokens = tokens;
+        }
+
+        @Override
+        public boolean incrementToken() {
+            if (next == tokens.size) return false;
+            clearAttributes();
+            int from = next == 0 ? 0 : tokens.termEnds[next - 1];
+            term.copyBuffer(tokens.chars, from, tokens.termEnds[next] - from);
+            posInc.setPositionIncrement(tokens.posIncs[next]);
+            offset.setOffset(tokens.starts[next], tokens.ends[next]);
+            type.setType(tokens.types[next]);
+            next++;
+            return true;
+        }
+
+        @Override
+        public void end() throws IOException {
+            super.end();
+            offset.setOffset(tokens.finalOffset, tokens.finalOffset);
+            posInc.setPositionIncrement(tokens.finalPosInc);
+        }
+
+        @Override
+        public void reset() throws IOException {
+            super.reset();
+            next = 0;
+        }
+    }
+
+    // An analyzer's tail over its own Replay, reused from text to text
+    static class Chain {
+        final Replay replay = new Replay();
+        final TokenStream stream;
+
+        Chain(UnaryOperator<TokenStream> tail) {
+            stream = tail.apply(replay);
+        }
+
+        TokenStream over(Captured tokens) {
+            replay.setTokens(tokens);
+            return stream;
+        }
+    }
+
+    // The shared prefix; one per thread. Captured texts are recycled by clear()
+    static class Prefix {
+        private final StandardTokenizer tokenizer = new StandardTokenizer();
+        private final TokenStream stream = new LowerCaseFilter(tokenizer);
+        private final CharTermAttribute term = stream.addAttribute(CharTermAttribute.class);
+        private final PositionIncrementAttribute posInc = stream.addAttribute(PositionIncrementAttribute.class);
+        private final OffsetAttribute offset = stream.addAttribute(OffsetAttribute.class);
+        private final TypeAttribute type = stream.addAttribute(TypeAttribute.class);
+        private final Map<String, Captured> captured = new HashMap<>();
+        private final List<Captured> free = new ArrayList<>();
+
+        // The prefix tokens of text, tokenized on its first request since clear()
+        Captured get(String text) throws IOException {
+            Captured tokens = captured.get(text);
+            if (tokens != null) return tokens;
+            tokens = free.isEmpty() ? new Captured() : free.remove(free.size() - 1);
+            tokens.size = 0;
+            tokenizer.setReader(new StringReader(text));
+            try {
+                stream.reset();
+                while (stream.incrementToken()) {
+                    tokens.add(term, posInc.getPositionIncrement(), offset.startOffset(), offset.endOffset(),
+                            type.type());
+                }
+                stream.end();
+                tokens.finalOffset = offset.endOffset();
+                tokens.finalPosInc = posInc.getPositionIncrement();
+            } finally {
+                stream.close();
+            }
+            captured.put(text, tokens);
+            return tokens;
+        }
+
+        void clear() {
+            free.addAll(captured.values());
+            captured.clear();
+        }
+    }
+
+    // -----------------------------
+    // Ingestion: per document, tokenize each distinct field text once, then
+    // give every index's fields their tails over it and add the document.
+    // Each indexing thread keeps one chain per index and field.
+    // -----------------------------
+    static int index(Iterator<DocStruct> docs, IndexWriter[] writers, Analyzer[] analyzers, Embedder[] embedders,
+                     boolean content, int threads, PrintStream out) throws IOException {
+        return BulkIndexer.index(docs, threads, () -> {
+            Prefix prefix = new Prefix();
+            BulkIndexer.DocFields[] fields = new BulkIndexer.DocFields[writers.length];
+            Chain[][] chains = new Chain[writers.length][];
+            for (int i = 0; i < writers.length; i++) {
+                fields[i] = new BulkIndexer.DocFields(embedders[i], content);
+                UnaryOperator<TokenStream> tail = tail(analyzers[i]);
+                chains[i] = new Chain[fields[i].analyzed().length];
+                for (int f = 0; f < chains[i].length; f++) chains[i][f] = new Chain(tail);
+            }
+            return d -> {
+                prefix.clear();
+                for (int i = 0; i < writers.length; i++) {
+                    fields[i].set(d);
+                    BulkIndexer.AnalyzedField[] analyzed = fields[i].analyzed();
+                    for (int f = 0; f < analyzed.length; f++) {
+                        analyzed[f].setTokens(chains[i][f].over(prefix.get(analyzed[f].stringValue())));
+                    }
+                    writers[i].addDocument(fields[i].doc);
+                }
+            };
+        }, out);
+    }
+
+    // -----------------------------
+    // Analysis CPU of the two ways, analysis only (no indexing), for
+    // --compare-analysis: every analyzer's full chain on each analyzed field
+    // value, against the shared prefix plus every tail. Each round streams
+    // the collection from the file again and runs both ways on every
+    // document, alternating which goes first, on this thread's CPU clock
+    // (reading the records is not counted); one warm-up round, then
+    // MEASURED_ROUNDS timed, and each way reports its median round. The
+    // token streams of both are hashed (term, position) per analyzer, so the
+    // report also says whether the shared pass produced the same tokens.
+    // -----------------------------
+    static void compareCpu(Path cranPath, Analyzer[] analyzers, boolean content, PrintStream out)
+            throws IOException {
+        long[] independentHash = new long[analyzers.length];
+        long[] sharedHash = new long[analyzers.length];
+        long[] independent = new long[MEASURED_ROUNDS];
+        long[] shared = new long[MEASURED_ROUNDS];
+        Prefix prefix = new Prefix();
+        Chain[] chains = new Chain[analyzers.length];
+        for (int a = 0; a < analyzers.length; a++) chains[a] = new Chain(tail(analyzers[a]));
+        int docs = 0;
+        for (int round = -1; round < MEASURED_ROUNDS; round++) {
+            Arrays.fill(independentHash, 0);
+            Arrays.fill(sharedHash, 0);
+            long independentNanos = 0;
+            long sharedNanos = 0;
+            docs = 0;
+            try (CranfieldReader reader = new CranfieldReader(cranPath)) {
+                while (reader.hasNext()) {
+                    String[] texts = fieldValues(reader.next(), content);
+                    boolean sharedFirst = (docs++ & 1) == 1;
+                    if (sharedFirst) sharedNanos += analyzeShared(prefix, chains, texts, sharedHash);
+                    independentNanos += analyzeIndependent(analyzers, texts, independentHash);
+                    if (!sharedFirst) sharedNanos += analyzeShared(prefix, chains, texts, sharedHash);
+                }
+            }
+            if (round >= 0) {
+                independent[round] = independentNanos;
+                shared[round] = sharedNanos;
+            }
+        }
+        long independentNanos = median(independent);
+        long sharedNanos = median(shared);
+        out.printf("Analysis CPU (median of %d rounds) for %d indexes over %d documents: independent %.1f ms,"
+                        + " shared %.1f ms (saved %.1f ms, %.0f%%) | tokens %s\n",
+                MEASURED_ROUNDS, analyzers.length, docs, independentNanos / 1e6, sharedNanos / 1e6,
+                (independentNanos - sharedNanos) / 1e6,
+                100.0 * (independentNanos - sharedNanos) / Math.max(1, independentNanos),
+                Arrays.equals(independentHash, sharedHash) ? "identical" : "DIFFER");
+    }
+
+    // CPU nanos of every analyzer's full chain over one document's texts
+    private static long analyzeIndependent(Analyzer[] analyzers, String[] texts, long[] hashes) throws IOException {
+        long start = cpuNanos();
+        for (int a = 0; a < analyzers.length; a++) {
+            for (String text : texts) {
+                try (TokenStream ts = analyzers[a].tokenStream(FieldMode.CONTENT, text)) {
+                    hashes[a] += consume(ts);
+                }
+            }
+        }
+        return cpuNanos() - start;
+    }
+
+    // CPU nanos of the shared prefix and every tail over one document's texts
+    private static long analyzeShared(Prefix prefix, Chain[] chains, String[] texts, long[] hashes)
+            throws IOException {
+        long start = cpuNanos();
+        prefix.clear();
+        for (int a = 0; a < chains.length; a++) {
+            for (String text : texts) {
+                try (TokenStream ts = chains[a].over(prefix.get(text))) {
+                    hashes[a] += consume(ts);
+                }
+            }
+        }
+        return cpuNanos() - start;
+    }
+
+    // The texts a document's analyzed fields hold, as DocFields sets them
+    private static String[] fieldValues(DocStruct d, boolean content) {
+        String title = d.title == null ? "" : d.title;
+        String body = d.body == null ? "" : d.body;
+        String author = d.author == null ? "" : d.author;
+        String bib = d.bib == null ? "" : d.bib;
+        return content ? new String[] {title, author, bib, body, title, body}
+                : new String[] {title, author, bib, body};
+    }
+
+    // Order-sensitive hash of the stream's (term, position) pairs
+    private static long consume(TokenStream ts) throws IOException {
+        CharTermAttribute term = ts.addAttribute(CharTermAttribute.class);
+        PositionIncrementAttribute posInc = ts.addAttribute(PositionIncrementAttribute.class);
+        long hash = 0;
+        int position = -1;
+        ts.reset();
+        while (ts.incrementToken()) {
+            position += posInc.getPositionIncrement();
+            hash = hash * 31 + term.toString().hashCode() * 17L + position;
+        }
+        ts.end();
+        return hash;
+    }
+
+    private static long median(long[] nanos) {
+        long[] sorted = nanos.clone();
+        Arrays.sort(sorted);
+        return sorted[sorted.length / 2];
+    }
+
+    private static long cpuNanos() {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        return threads.isCurrentThreadCpuTimeSupported() ? threads.getCurrentThreadCpuTime() : System.nanoTime();
+    }
+}
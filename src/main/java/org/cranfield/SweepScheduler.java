@@ -0,0 +1,80 @@
+package org.cranfield;
+
+import java.util.concurrent.*;
+
+// -----------------------------
+// Bounded scheduler for the analyzer x similarity sweep.
+// Tasks run on a fixed pool of worker threads and each one holds a share of a
+// memory budget (in KB, so small combinations are not rounded up to a whole
+// MB) while it runs. Dependent tasks are only queued once the task they need
+// has completed, so no worker ever blocks waiting on another task's result.
+// -----------------------------
+class SweepScheduler implements AutoCloseable {
+
+    @FunctionalInterface
+    interface Task<T> {
+        T run() throws Exception;
+    }
+
+    @FunctionalInterface
+    interface DependentTask<I, T> {
+        T run(I input) throws Exception;
+    }
+
+    private final ExecutorService pool;
+    private final Semaphore memory;
+    private final int memoryBudgetKb;
+
+    SweepScheduler(int concurrency, int memoryBudgetKb) {
+        if (concurrency < 1) throw new IllegalArgumentException("concurrency must be >= 1");
+        if (memoryBudgetKb < 1024) throw new IllegalArgumentException("memory budget must be >= 1 MB");
+        this.pool = Executors.newFixedThreadPool(concurrency);
+        this.memory = new Semaphore(memoryBudgetKb, true);
+        this.memoryBudgetKb = memoryBudgetKb;
+    }
+
+    // Run a task once memoryKb of the budget is free
+    <T> CompletableFuture<T> submit(int memoryKb, Task<T> task) {
+        CompletableFuture<T> result = new CompletableFuture<>();
+        pool.execute(() -> runWithBudget(memoryKb, task, result));
+        return result;
+    }
+
+    // Run a task with the value of another one, after that one has completed
+    <I, T> CompletableFuture<T> submitAfter(CompletableFuture<I> dependency, int memoryKb,
+                                            DependentTask<I, T> task) {
+        CompletableFuture<T> result = new CompletableFuture<>();
+        dependency.whenComplete((input, error) -> {
+            if (error != null) {
+                result.completeExceptionally(error);
+            } else {
+                pool.execute(() -> runWithBudget(memoryKb, () -> task.run(input), result));
+            }
+        });
+        return result;
+    }
+
+    private <T> void runWithBudget(int memoryKb, Task<T> task, CompletableFuture<T> result) {
+        // a task larger than the whole budget still runs, just on its own
+        int permits = Math.max(1, Math.min(memoryKb, memoryBudgetKb));
+        try {
+            memory.acquire(permits);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            result.completeExceptionally(e);
+            return;
+        }
+        try {
+            result.complete(task.run());
+        } catch (Throwable t) {
+            result.completeExceptionally(t);
+        } finally {
+            memory.release(permits);
+        }
+    }
+
+    @Override
+    public void close() {
+        pool.shutdown();
+    }
+}
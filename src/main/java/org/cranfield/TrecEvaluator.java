@@ -0,0 +1,479 @@
+package org.cranfield;
+
+import java.io.*;
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+
+// -----------------------------
+// In-process trec_eval (9.0.7) for the measures this harness reports:
+// num_q, num_ret, num_rel, num_rel_ret, map, Rprec, bpref, P_k, recall_k, ndcg_cut_k.
+//
+// The qrels are loaded once into primitive arrays: every judged docno gets an
+// ordinal, and each query keeps its judged ordinals (sorted) with their
+// relevance values. Rankings are evaluated straight from memory with
+// trec_eval's rules: results are re-sorted by score, ties broken by docno in
+// descending order; only queries present in both the run and the qrels are
+// averaged; a document is relevant when its judgement is >= 1.
+//
+// Can also be run on its own, with the same arguments as trec_eval:
+//   TrecEvaluator [-q] [-m measure[.k1,k2,...]]... qrels results [--check expected_output]
+// --check compares the output line by line with a saved trec_eval output (for
+// example trec_eval-9.0.7/test/out.test.aq) and exits non-zero on disagreement.
+// TrecEvaluatorTest holds the evaluator to those saved outputs on every build.
+// -----------------------------
+class TrecEvaluator {
+
+    static final int[] DEFAULT_CUTOFFS = {5, 10, 15, 20, 30, 100, 200, 500, 1000};
+
+    private static final int RELEVANCE_LEVEL = 1;
+    private static final int REL_NONPOOL = -1;
+    private static final int REL_UNJUDGED = -2;
+
+    private final int[] cutoffs;
+    private final Map<String, Integer> docnoOrdinals;
+    private final Map<String, Integer> queryIndex;
+    private final int[][] judgedDocs;   // per query, sorted docno ordinals
+    private final int[][] judgedRels;   // per query, relevance aligned with judgedDocs
+    private final long[][] relLevels;   // per query, judged count per relevance value
+    private final int[] numRel;         // per query, judged docs at or above RELEVANCE_LEVEL
+
+    private TrecEvaluator(int[] cutoffs, Map<String, Integer> docnoOrdinals, Map<String, Integer> queryIndex,
+                          int[][] judgedDocs, int[][] judgedRels) {
+        this.cutoffs = cutoffs;
+        this.docnoOrdinals = docnoOrdinals;
+        this.queryIndex = queryIndex;
+        this.judgedDocs = judgedDocs;
+        this.judgedRels = judgedRels;
+        this.relLevels = new long[judgedDocs.length][];
+        this.numRel = new int[judgedDocs.length];
+        for (int q = 0; q < judgedDocs.length; q++) {
+            int maxRel = 0;
+            for (int rel : judgedRels[q]) maxRel = Math.max(maxRel, rel);
+            long[] levels = new long[maxRel + 1];
+            for (int rel : judgedRels[q]) {
+                if (rel >= 0) levels[rel]++;
+            }
+            relLevels[q] = levels;
+            for (int level = RELEVANCE_LEVEL; level < levels.length; level++) numRel[q] += (int) levels[level];
+        }
+    }
+
+    // -----------------------------
+    // Load qrels: "qid iter docno rel" (whitespace separated)
+    // -----------------------------
+    static TrecEvaluator load(Path qrelsPath, int[] cutoffs) throws IOException {
+        int[] sortedCutoffs = cutoffs.clone();
+        Arrays.sort(sortedCutoffs);
+        for (int i = 0; i < sortedCutoffs.length; i++) {
+            if (sortedCutoffs[i] <= 0 || (i > 0 && sortedCutoffs[i] == sortedCutoffs[i - 1])) {
+                throw new IllegalArgumentException("cutoffs must be positive without duplicates: "
+                        + Arrays.toString(cutoffs));
+            }
+        }
+
+        Map<String, Integer> docnoOrdinals = new HashMap<>();
+        Map<String, Integer> queryIndex = new LinkedHashMap<>();
+        List<Map<Integer, Integer>> judgements = new ArrayList<>();
+        try (BufferedReader br = Files.newBufferedReader(qrelsPath)) {
+            String line;
+            while ((line = br.readLine()) != null) {
+                line = line.trim();
+                if (line.isEmpty()) continue;
+                String[] parts = line.split("\\s+");
+                if (parts.length != 4) {
+                    throw new IOException("Malformed qrels line in " + qrelsPath + ": " + line);
+                }
+                Integer q = queryIndex.get(parts[0]);
+                if (q == null) {
+                    q = queryIndex.size();
+                    queryIndex.put(parts[0], q);
+                    judgements.add(new HashMap<>());
+                }
+                Integer ordinal = docnoOrdinals.get(parts[2]);
+                if (ordinal == null) {
+                    ordinal = docnoOrdinals.size();
+                    docnoOrdinals.put(parts[2], ordinal);
+                }
+                if (judgements.get(q).put(ordinal, Integer.parseInt(parts[3])) != null) {
+                    throw new IOException("Duplicate qrels entry for query " + parts[0] + ", doc " + parts[2]);
+                }
+            }
+        }
+
+        int[][] judgedDocs = new int[judgements.size()][];
+        int[][] judgedRels = new int[judgements.size()][];
+        for (int q = 0; q < judgements.size(); q++) {
+            Map<Integer, Integer> judged = judgements.get(q);
+            int[] docs = new int[judged.size()];
+            int n = 0;
+            for (int ordinal : judged.keySet()) docs[n++] = ordinal;
+            Arrays.sort(docs);
+            int[] rels = new int[docs.length];
+            for (int i = 0; i < docs.length; i++) rels[i] = judged.get(docs[i]);
+            judgedDocs[q] = docs;
+            judgedRels[q] = rels;
+        }
+        return new TrecEvaluator(sortedCutoffs, docnoOrdinals, queryIndex, judgedDocs, judgedRels);
+    }
+
+    int[] cutoffs() {
+        return cutoffs;
+    }
+
+    boolean isJudged(String qid) {
+        return queryIndex.containsKey(qid);
+    }
+
+    // Scores as they read back from a TREC run file written with "%.6f". The
+    // float mantissa times 1e6 is exact in a double, so this rounds the same way.
+    static float trecScore(float score) {
+        return (float) (Math.round((double) score * 1e6) / 1e6);
+    }
+
+    // -----------------------------
+    // Evaluate one query's ranking. Returns null when the query has no qrels
+    // (trec_eval skips it). docnos/scores need not be in trec_eval order.
+    // -----------------------------
+    QueryMeasures evaluate(String qid, String[] docnos, float[] scores, int n) {
+        Integer q = queryIndex.get(qid);
+        if (q == null) return null;
+
+        // trec_eval order: score descending, then docno descending
+        Integer[] order = new Integer[n];
+        for (int i = 0; i < n; i++) order[i] = i;
+        Arrays.sort(order, (a, b) -> {
+            int c = Float.compare(scores[b], scores[a]);
+            return c != 0 ? c : docnos[b].compareTo(docnos[a]);
+        });
+
+        int[] docs = judgedDocs[q];
+        int[] rels = judgedRels[q];
+        int[] rankRels = new int[n];
+        for (int rank = 0; rank < n; rank++) {
+            Integer ordinal = docnoOrdinals.get(docnos[order[rank]]);
+            int pos = ordinal == null ? -1 : Arrays.binarySearch(docs, ordinal);
+            if (pos < 0) {
+                rankRels[rank] = REL_NONPOOL;
+            } else {
+                rankRels[rank] = rels[pos] < 0 ? REL_UNJUDGED : rels[pos];
+            }
+        }
+        return measure(q, rankRels);
+    }
+
+    private QueryMeasures measure(int q, int[] rankRels) {
+        int numRet = rankRels.length;
+        int relTotal = numRel[q];
+        long[] levels = relLevels[q];
+        QueryMeasures m = new QueryMeasures(cutoffs.length);
+        m.numRet = numRet;
+        m.numRel = relTotal;
+
+        long numNonrel = 0;
+        for (int level = 0; level < RELEVANCE_LEVEL && level < levels.length; level++) numNonrel += levels[level];
+
+        int relSoFar = 0;
+        int nonrelSoFar = 0;
+        int rprecDepth = Math.min(numRet, relTotal);
+        double sumPrec = 0.0;
+        double dcg = 0.0;
+        int cutoffIndex = 0;
+        for (int i = 0; i < numRet; i++) {
+            while (cutoffIndex < cutoffs.length && i == cutoffs[cutoffIndex]) {
+                setCutoff(m, cutoffIndex++, relSoFar, relTotal, i, dcg);
+            }
+            if (i == rprecDepth && relTotal > 0) m.rprec = (double) relSoFar / relTotal;
+
+            int rel = rankRels[i];
+            if (rel > 0) dcg += rel / log2(i + 2);
+            if (rel >= RELEVANCE_LEVEL) {
+                relSoFar++;
+                sumPrec += (double) relSoFar / (i + 1);
+                if (nonrelSoFar > 0) {
+                    m.bpref += 1.0 - ((double) Math.min(nonrelSoFar, relTotal) / (double) Math.min(numNonrel, relTotal));
+                } else {
+                    m.bpref += 1.0;
+                }
+            } else if (rel >= 0) {
+                nonrelSoFar++;
+            }
+        }
+        while (cutoffIndex < cutoffs.length) {
+            setCutoff(m, cutoffIndex, relSoFar, relTotal, cutoffs[cutoffIndex], dcg);
+            cutoffIndex++;
+        }
+        if (rprecDepth == numRet && relTotal > 0 && rprecDepth > 0) m.rprec = (double) relSoFar / relTotal;
+
+        m.numRelRet = relSoFar;
+        if (relSoFar > 0) m.map = sumPrec / relTotal;
+        if (relTotal > 0) m.bpref /= relTotal;
+        normalizeNdcg(m, levels);
+        return m;
+    }
+
+    private static void setCutoff(QueryMeasures m, int index, int relSoFar, int relTotal, int depth, double dcg) {
+        m.precision[index] = (double) relSoFar / depth;
+        m.recall[index] = relTotal == 0 ? 0.0 : (double) relSoFar / relTotal;
+        m.ndcg[index] = dcg;
+    }
+
+    // Ideal DCG at each cutoff, walking relevance levels from the highest down
+    // (same iteration as m_ndcg_cut.c)
+    private void normalizeNdcg(QueryMeasures m, long[] levels) {
+        int numRelLevels = 0;
+        for (int level = 0; level < levels.length; level++) {
+            if (levels[level] > 0) numRelLevels = level + 1;
+        }
+        int cutoffIndex = 0;
+        int curLevel = numRelLevels - 1;
+        long levelCount = 0;
+        double idealDcg = 0.0;
+        for (int i = 0; ; i++) {
+            levelCount++;
+            while (curLevel > 0 && levelCount > levels[curLevel]) {
+                curLevel--;
+                levelCount = 1;
+            }
+            if (curLevel <= 0) break;
+            if (i == cutoffs[cutoffIndex]) {
+                if (idealDcg > 0.0) m.ndcg[cutoffIndex] /= idealDcg;
+                if (++cutoffIndex == cutoffs.length) break;
+            }
+            idealDcg += curLevel / log2(i + 2);
+        }
+        while (cutoffIndex < cutoffs.length) {
+            if (idealDcg > 0.0) m.ndcg[cutoffIndex] /= idealDcg;
+            cutoffIndex++;
+        }
+    }
+
+    private static double log2(double x) {
+        return Math.log(x) / Math.log(2.0);
+    }
+
+    // -----------------------------
+    // Per-query values, and the run-level mean over evaluated queries
+    // -----------------------------
+    static class QueryMeasures {
+        int numRet;
+        int numRel;
+        int numRelRet;
+        double map;
+        double rprec;
+        double bpref;
+        final double[] precision;
+        final double[] recall;
+        final double[] ndcg;
+
+        QueryMeasures(int numCutoffs) {
+            precision = new double[numCutoffs];
+            recall = new double[numCutoffs];
+            ndcg = new double[numCutoffs];
+        }
+    }
+
+    static class Summary {
+        private final int[] cutoffs;
+        private final QueryMeasures sum;
+        private int numQueries;
+
+        Summary(int[] cutoffs) {
+            this.cutoffs = cutoffs;
+            this.sum = new QueryMeasures(cutoffs.length);
+        }
+
+        void add(QueryMeasures m) {
+            numQueries++;
+            sum.numRet += m.numRet;
+            sum.numRel += m.numRel;
+            sum.numRelRet += m.numRelRet;
+            sum.map += m.map;
+            sum.rprec += m.rprec;
+            sum.bpref += m.bpref;
+            for (int i = 0; i < cutoffs.length; i++) {
+                sum.precision[i] += m.precision[i];
+                sum.recall[i] += m.recall[i];
+                sum.ndcg[i] += m.ndcg[i];
+            }
+        }
+
+        int numQueries() { return numQueries; }
+        double map() { return mean(sum.map); }
+        double rprec() { return mean(sum.rprec); }
+        double bpref() { return mean(sum.bpref); }
+        double precision(int cutoff) { return mean(sum.precision[indexOf(cutoff)]); }
+        double recall(int cutoff) { return mean(sum.recall[indexOf(cutoff)]); }
+        double ndcgCut(int cutoff) { return mean(sum.ndcg[indexOf(cutoff)]); }
+
+        private double mean(double total) {
+            return numQueries == 0 ? 0.0 : total / numQueries;
+        }
+
+        private int indexOf(int cutoff) {
+            int i = Arrays.binarySearch(cutoffs, cutoff);
+            if (i < 0) throw new IllegalArgumentException("cutoff " + cutoff + " was not evaluated");
+            return i;
+        }
+
+        // trec_eval's summary block ("all" lines)
+        void print(PrintStream out, String runTag) {
+            print(out, runTag, ALL_MEASURES);
+        }
+
+        void print(PrintStream out, String runTag, Set<String> measures) {
+            out.printf("%-22s\t%s\t%s\n", "runid", "all", runTag);
+            if (measures.contains("num_q")) out.printf("%-22s\t%s\t%d\n", "num_q", "all", numQueries);
+            printMeasures(out, "all", sum, numQueries == 0 ? 1 : numQueries, cutoffs, measures);
+        }
+    }
+
+    static final Set<String> ALL_MEASURES = new LinkedHashSet<>(
+            List.of("num_q", "num_ret", "num_rel", "num_rel_ret", "map", "Rprec", "bpref", "P", "recall", "ndcg_cut"));
+
+    // Prints one block in trec_eval measure order; counts are summed, the rest divided by n.
+    // num_q is only part of the summary block.
+    private static void printMeasures(PrintStream out, String qid, QueryMeasures m, int n, int[] cutoffs,
+                                      Set<String> measures) {
+        if (measures.contains("num_ret")) out.printf("%-22s\t%s\t%d\n", "num_ret", qid, m.numRet);
+        if (measures.contains("num_rel")) out.printf("%-22s\t%s\t%d\n", "num_rel", qid, m.numRel);
+        if (measures.contains("num_rel_ret")) out.printf("%-22s\t%s\t%d\n", "num_rel_ret", qid, m.numRelRet);
+        if (measures.contains("map")) out.printf("%-22s\t%s\t%s\n", "map", qid, format(m.map / n));
+        if (measures.contains("Rprec")) out.printf("%-22s\t%s\t%s\n", "Rprec", qid, format(m.rprec / n));
+        if (measures.contains("bpref")) out.printf("%-22s\t%s\t%s\n", "bpref", qid, format(m.bpref / n));
+        if (measures.contains("P")) printCut(out, "P_", qid, m.precision, n, cutoffs);
+        if (measures.contains("recall")) printCut(out, "recall_", qid, m.recall, n, cutoffs);
+        if (measures.contains("ndcg_cut")) printCut(out, "ndcg_cut_", qid, m.ndcg, n, cutoffs);
+    }
+
+    private static void printCut(PrintStream out, String prefix, String qid, double[] values, int n, int[] cutoffs) {
+        for (int i = 0; i < cutoffs.length; i++) {
+            out.printf("%-22s\t%s\t%s\n", prefix + cutoffs[i], qid, format(values[i] / n));
+        }
+    }
+
+    // C printf("%6.4f"): rounds the exact binary value half-to-even, where
+    // Java's %f would round 0.78125 up to 0.7813
+    private static String format(double value) {
+        return String.format("%6s", new BigDecimal(value).setScale(4, RoundingMode.HALF_EVEN).toPlainString());
+    }
+
+    // -----------------------------
+    // Command-line trec_eval replacement
+    // -----------------------------
+    public static void main(String[] args) throws IOException {
+        boolean perQuery = false;
+        Set<String> measures = new LinkedHashSet<>();
+        int[] cutoffs = null;
+        String check = null;
+        List<String> files = new ArrayList<>();
+        for (int i = 0; i < args.length; i++) {
+            String a = args[i];
+            if (a.equals("-q")) {
+                perQuery = true;
+            } else if (a.equals("--check")) {
+                check = args[++i];
+            } else if (a.startsWith("-m")) {
+                String spec = a.length() > 2 ? a.substring(2) : args[++i];
+                int dot = spec.indexOf('.');
+                String name = dot < 0 ? spec : spec.substring(0, dot);
+                if (!ALL_MEASURES.contains(name)) {
+                    throw new IllegalArgumentException("Unsupported measure: " + name);
+                }
+                measures.add(name);
+                if (dot >= 0) {
+                    // trec_eval reads cutoffs with atol, so "23.4" is 23
+                    int[] parsed = Arrays.stream(spec.substring(dot + 1).split(","))
+                            .mapToInt(c -> (int) Double.parseDouble(c)).toArray();
+                    if (cutoffs != null && !Arrays.equals(cutoffs, parsed)) {
+                        throw new IllegalArgumentException("All cutoff measures must share the same cutoffs");
+                    }
+                    cutoffs = parsed;
+                }
+            } else {
+                files.add(a);
+            }
+        }
+        if (files.size() != 2) {
+            System.err.println("Usage: TrecEvaluator [-q] [-m measure[.k,...]]... qrels results [--check expected]");
+            System.exit(1);
+        }
+        if (measures.isEmpty()) measures.addAll(ALL_MEASURES);
+
+        TrecEvaluator evaluator = load(Paths.get(files.get(0)), cutoffs == null ? DEFAULT_CUTOFFS : cutoffs);
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        try (PrintStream out = new PrintStream(buffer, true, StandardCharsets.UTF_8)) {
+            evaluator.evaluateRunFile(Paths.get(files.get(1)), perQuery, measures, out);
+        }
+        String output = buffer.toString(StandardCharsets.UTF_8);
+        System.out.print(output);
+
+        if (check != null) {
+            int mismatches = compare(output, Files.readAllLines(Paths.get(check)));
+            System.err.printf("Checked against %s: %d mismatching values\n", check, mismatches);
+            if (mismatches > 0) System.exit(2);
+        }
+    }
+
+    // Evaluate a TREC run file, printing per-query blocks (in qid order) and the summary
+    void evaluateRunFile(Path resultsPath, boolean perQuery, Set<String> measures, PrintStream out)
+            throws IOException {
+        Map<String, List<String[]>> byQuery = new TreeMap<>();
+        String runTag = null;
+        try (BufferedReader br = Files.newBufferedReader(resultsPath)) {
+            String line;
+            while ((line = br.readLine()) != null) {
+                line = line.trim();
+                if (line.isEmpty()) continue;
+                String[] parts = line.split("\\s+");
+                if (parts.length != 6) throw new IOException("Malformed results line: " + line);
+                byQuery.computeIfAbsent(parts[0], k -> new ArrayList<>()).add(parts);
+                runTag = parts[5];
+            }
+        }
+
+        Summary summary = new Summary(cutoffs);
+        for (Map.Entry<String, List<String[]>> e : byQuery.entrySet()) {
+            List<String[]> lines = e.getValue();
+            String[] docnos = new String[lines.size()];
+            float[] scores = new float[lines.size()];
+            Set<String> seen = new HashSet<>();
+            for (int i = 0; i < lines.size(); i++) {
+                docnos[i] = lines.get(i)[2];
+                scores[i] = (float) Double.parseDouble(lines.get(i)[4]);
+                if (!seen.add(docnos[i])) {
+                    throw new IOException("Duplicate docs " + docnos[i] + " for query " + e.getKey());
+                }
+            }
+            QueryMeasures m = evaluate(e.getKey(), docnos, scores, docnos.length);
+            if (m == null) continue;
+            if (perQuery) printMeasures(out, e.getKey(), m, 1, cutoffs, measures);
+            summary.add(m);
+        }
+        if (summary.numQueries() == 0) throw new IOException("No queries with both results and relevance info");
+        summary.print(out, runTag, measures);
+    }
+
+    // Count values that disagree with a saved trec_eval output, matching lines on (measure, qid)
+    private static int compare(String output, List<String> expectedLines) {
+        Map<String, String> expected = new HashMap<>();
+        for (String line : expectedLines) {
+            String[] parts = line.trim().split("\\s+");
+            if (parts.length == 3) expected.put(parts[0] + " " + parts[1], parts[2]);
+        }
+        int mismatches = 0;
+        for (String line : output.split("\n")) {
+            String[] parts = line.trim().split("\\s+");
+            if (parts.length != 3 || parts[0].equals("runid")) continue;
+            String want = expected.get(parts[0] + " " + parts[1]);
+            if (want == null) continue;
+            if (!want.equals(parts[2])) {
+                System.err.printf("  %s %s: expected %s, got %s\n", parts[0], parts[1], want, parts[2]);
+                mismatches++;
+            }
+        }
+        return mismatches;
+    }
+}
@@ -0,0 +1,94 @@
+package org.cranfield;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.IOException;
+import java.nio.file.*;
+import java.util.*;
+import java.util.stream.Stream;
+
+import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.TextField;
+import org.apache.lucene.index.*;
+import org.apache.lucene.search.*;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.FSDirectory;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+// -----------------------------
+// ResultCache's disk tier across commits: a new index state replaces the
+// file of the earlier one, a reader still open on the earlier state keeps to
+// the memory tier instead of bringing its file back, and a fresh cache over
+// the same state is answered from disk.
+// -----------------------------
+class ResultCacheTest {
+
+    private static final Query WING = new TermQuery(new Term("body", "wing"));
+    private static final Query FLOW = new TermQuery(new Term("body", "flow"));
+
+    @TempDir
+    Path tmp;
+
+    @Test
+    void replacesTheFileOfAnEarlierState() throws IOException {
+        Path cacheDir = tmp.resolve("cache");
+        try (Directory directory = FSDirectory.open(tmp.resolve("index"));
+             IndexWriter writer = new IndexWriter(directory, new IndexWriterConfig(new StandardAnalyzer()))) {
+            add(writer, "wing flow");
+            writer.commit();
+            try (DirectoryReader before = DirectoryReader.open(directory);
+                 ResultCache cache = cache(cacheDir)) {
+                assertFalse(search(cache, before, WING).cached());
+                List<Path> first = files(cacheDir);
+                assertEquals(1, first.size());
+
+                add(writer, "wing");
+                writer.commit();
+                try (DirectoryReader after = DirectoryReader.openIfChanged(before)) {
+                    assertFalse(search(cache, after, WING).cached());
+                    List<Path> second = files(cacheDir);
+                    assertEquals(1, second.size());
+                    assertNotEquals(first, second);
+
+                    // the earlier state's file is gone for good
+                    assertFalse(search(cache, before, FLOW).cached());
+                    assertEquals(second, files(cacheDir));
+                    assertEquals(1, search(cache, before, WING).top().totalHits.value());
+                    // nothing went to the dropped file either
+                    assertTrue(cache.stats().contains("written to disk = 2 "), cache.stats());
+                }
+            }
+
+            try (DirectoryReader reader = DirectoryReader.open(directory);
+                 ResultCache cache = cache(cacheDir)) {
+                ResultCache.Result result = search(cache, reader, WING);
+                assertTrue(result.cached());
+                assertEquals(2, result.top().totalHits.value());
+            }
+        }
+    }
+
+    private static ResultCache cache(Path dir) {
+        return ResultCache.fromArgs(Map.of("result-cache", "1", "result-cache-dir", dir.toString()));
+    }
+
+    private static ResultCache.Result search(ResultCache cache, IndexReader reader, Query query) throws IOException {
+        IndexSearcher searcher = new IndexSearcher(reader);
+        return cache.search(searcher, "standard", query, 10, 1000, () -> searcher.search(query, 10));
+    }
+
+    private static void add(IndexWriter writer, String body) throws IOException {
+        Document doc = new Document();
+        doc.add(new TextField("body", body, Field.Store.NO));
+        writer.addDocument(doc);
+    }
+
+    private static List<Path> files(Path dir) throws IOException {
+        try (Stream<Path> files = Files.list(dir)) {
+            return files.sorted().toList();
+        }
+    }
+}
@@ -0,0 +1,100 @@
+package org.cranfield;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.*;
+import java.util.Arrays;
+
+import org.apache.lucene.search.ScoreDoc;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+// -----------------------------
+// RunFile round trips, plain and deflated, and files cut short: a truncated
+// run must fail with an IOException, never hang or read past its end.
+// -----------------------------
+class RunFileTest {
+
+    private static final int ROWS = 300;
+
+    @TempDir
+    Path tmp;
+
+    @Test
+    void roundTrips() throws IOException {
+        for (boolean compress : new boolean[]{false, true}) {
+            RunFile run = RunFile.read(write("run" + compress, compress));
+            assertEquals("tag", run.runTag);
+            assertEquals(3, run.queries());
+            assertEquals("2", run.qid(1));
+            assertEquals(ROWS / 3, run.size(2));
+            assertEquals("d" + (ROWS / 3 + 5), run.docno(1, 5));
+            assertEquals(ROWS - (ROWS / 3 + 5), run.score(1, 5));
+        }
+    }
+
+    // The deflated columns end early, and so does the file
+    @Test
+    void rejectsTruncatedCompressedFile() throws IOException {
+        Path file = write("run", true);
+        byte[] bytes = Files.readAllBytes(file);
+        Files.write(file, Arrays.copyOf(bytes, bytes.length - 16));
+        assertTruncated(file);
+    }
+
+    // The deflated columns end early but their stored length agrees, so only
+    // the inflater can tell: it runs out of input before the columns are full
+    @Test
+    void rejectsTruncatedCompressedColumns() throws IOException {
+        Path file = write("run", true);
+        byte[] bytes = Files.readAllBytes(file);
+        int lengthAt = headerBytes();
+        ByteBuffer length = ByteBuffer.wrap(bytes, lengthAt, Integer.BYTES).order(ByteOrder.LITTLE_ENDIAN);
+        int cut = length.getInt(lengthAt) / 2;
+        length.putInt(lengthAt, cut);
+        Files.write(file, Arrays.copyOf(bytes, lengthAt + Integer.BYTES + cut));
+        assertTruncated(file);
+    }
+
+    @Test
+    void rejectsTruncatedPlainFile() throws IOException {
+        Path file = write("run", false);
+        byte[] bytes = Files.readAllBytes(file);
+        Files.write(file, Arrays.copyOf(bytes, bytes.length - 16));
+        assertTruncated(file);
+        Files.write(file, Arrays.copyOf(bytes, 20));
+        assertTruncated(file);
+    }
+
+    private static void assertTruncated(Path file) {
+        IOException e = assertThrows(IOException.class, () -> RunFile.read(file));
+        assertTrue(e.getMessage().startsWith("truncated run file"), e.getMessage());
+    }
+
+    // Three queries over distinct docnos, with falling scores
+    private Path write(String name, boolean compress) throws IOException {
+        RunFile.Builder builder = new RunFile.Builder("tag");
+        for (int q = 0; q < 3; q++) {
+            int n = ROWS / 3;
+            String[] docnos = new String[n];
+            ScoreDoc[] hits = new ScoreDoc[n];
+            for (int i = 0; i < n; i++) {
+                int row = q * n + i;
+                docnos[i] = "d" + row;
+                hits[i] = new ScoreDoc(row, ROWS - row);
+            }
+            builder.add(String.valueOf(q + 1), docnos, hits);
+        }
+        Path file = tmp.resolve(name);
+        builder.write(file, compress);
+        return file;
+    }
+
+    // Where the columns start: a plain file is the header and then the columns
+    private int headerBytes() throws IOException {
+        return (int) Files.size(write("plain", false)) - ROWS * (Integer.BYTES + Float.BYTES);
+    }
+}
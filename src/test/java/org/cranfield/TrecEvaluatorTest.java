@@ -0,0 +1,122 @@
+package org.cranfield;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+// -----------------------------
+// TrecEvaluator against the outputs of trec_eval 9.0.7 shipped with its
+// sources (trec_eval-9.0.7/test, see the quicktest target of its Makefile).
+// Every value the evaluator prints that the saved output also has must be
+// identical, text included, so rounding and tie-breaking are covered along
+// with the measures themselves.
+// -----------------------------
+class TrecEvaluatorTest {
+
+    private static final Path FIXTURES = Paths.get("trec_eval-9.0.7", "test");
+    private static final Path QRELS = FIXTURES.resolve("qrels.test");
+    private static final Path RESULTS = FIXTURES.resolve("results.test");
+
+    @TempDir
+    Path tmp;
+
+    // trec_eval qrels.test results.test
+    @Test
+    void matchesDefaultOutput() throws IOException {
+        assertMatches("out.test", evaluate(TrecEvaluator.DEFAULT_CUTOFFS, false, TrecEvaluator.ALL_MEASURES), 16);
+    }
+
+    // trec_eval -m all_trec qrels.test results.test
+    @Test
+    void matchesAllTrecSummary() throws IOException {
+        assertMatches("out.test.a", evaluate(TrecEvaluator.DEFAULT_CUTOFFS, false, TrecEvaluator.ALL_MEASURES), 34);
+    }
+
+    // trec_eval -m all_trec -q qrels.test results.test
+    @Test
+    void matchesAllTrecPerQuery() throws IOException {
+        assertMatches("out.test.aq", evaluate(TrecEvaluator.DEFAULT_CUTOFFS, true, TrecEvaluator.ALL_MEASURES), 133);
+    }
+
+    // trec_eval -q ... -m P.5,7,3 -m recall.20,2000 -mndcg_cut.10,20,23.4 ...: each
+    // measure with its own cutoffs, as the evaluator takes one cutoff list at a time
+    @Test
+    void matchesMeasureParameters() throws IOException {
+        assertMatches("out.test.meas_params", evaluate(new int[]{5, 7, 3}, true, Set.of("P")), 10);
+        assertMatches("out.test.meas_params", evaluate(new int[]{20, 2000}, true, Set.of("recall")), 8);
+        assertMatches("out.test.meas_params", evaluate(new int[]{10, 20, 23}, true, Set.of("ndcg_cut")), 10);
+    }
+
+    // Equal scores are ordered by docno descending, whatever order the run lists them in
+    @Test
+    void breaksScoreTiesByDocnoDescending() throws IOException {
+        Path qrels = write("qrels", "1 0 d1 1\n1 0 d2 0\n");
+        TrecEvaluator evaluator = TrecEvaluator.load(qrels, TrecEvaluator.DEFAULT_CUTOFFS);
+        TrecEvaluator.QueryMeasures m = evaluator.evaluate("1", new String[]{"d1", "d2"}, new float[]{1f, 1f}, 2);
+        // d2 ranks first, so the one relevant document is found at rank 2
+        assertEquals(0.5, m.map, 1e-12);
+        assertNull(evaluator.evaluate("2", new String[]{"d1"}, new float[]{1f}, 1));
+    }
+
+    // Printed values round the exact binary value half to even, as C's %6.4f does
+    @Test
+    void roundsLikePrintf() throws IOException {
+        // four relevant documents at ranks 1, 2, 3 and 32: AP = (3 + 4/32) / 4 = 0.78125 exactly
+        StringBuilder qrels = new StringBuilder();
+        StringBuilder run = new StringBuilder();
+        for (int rank = 1; rank <= 32; rank++) {
+            boolean relevant = rank <= 3 || rank == 32;
+            qrels.append("1 0 d").append(rank).append(relevant ? " 1\n" : " 0\n");
+            run.append("1 Q0 d").append(rank).append(' ').append(rank).append(' ').append(100 - rank).append(" t\n");
+        }
+        TrecEvaluator evaluator = TrecEvaluator.load(write("qrels", qrels.toString()), TrecEvaluator.DEFAULT_CUTOFFS);
+        String output = print(evaluator, write("run", run.toString()), false, Set.of("map"));
+        assertTrue(output.contains("map                   \tall\t0.7812\n"), output);
+    }
+
+    private String evaluate(int[] cutoffs, boolean perQuery, Set<String> measures) throws IOException {
+        return print(TrecEvaluator.load(QRELS, cutoffs), RESULTS, perQuery, measures);
+    }
+
+    private static String print(TrecEvaluator evaluator, Path run, boolean perQuery, Set<String> measures)
+            throws IOException {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        try (PrintStream out = new PrintStream(buffer, true, StandardCharsets.UTF_8)) {
+            evaluator.evaluateRunFile(run, perQuery, measures, out);
+        }
+        return buffer.toString(StandardCharsets.UTF_8);
+    }
+
+    // Lines are matched on (measure, qid); at least minValues must be compared
+    private static void assertMatches(String expectedFile, String output, int minValues) throws IOException {
+        Map<String, String> expected = new HashMap<>();
+        for (String line : Files.readAllLines(FIXTURES.resolve(expectedFile))) {
+            String[] parts = line.trim().split("\\s+");
+            if (parts.length == 3) expected.put(parts[0] + " " + parts[1], parts[2]);
+        }
+        List<String> mismatches = new ArrayList<>();
+        int compared = 0;
+        for (String line : output.split("\n")) {
+            String[] parts = line.trim().split("\\s+");
+            if (parts.length != 3 || parts[0].equals("runid")) continue;
+            String want = expected.get(parts[0] + " " + parts[1]);
+            if (want == null) continue;
+            compared++;
+            if (!want.equals(parts[2])) {
+                mismatches.add(parts[0] + " " + parts[1] + ": expected " + want + ", got " + parts[2]);
+            }
+        }
+        assertEquals(List.of(), mismatches, "against " + expectedFile);
+        assertTrue(compared >= minValues, "only " + compared + " values compared against " + expectedFile);
+    }
+
+    private Path write(String name, String text) throws IOException {
+        return Files.writeString(tmp.resolve(name), text);
+    }
+}